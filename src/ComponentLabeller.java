@@ -0,0 +1,319 @@
+
+/** Finds every shape (a group of touching pixels with exactly the same colour,
+ * neighbours are up/down/left/right) in a raster in a fixed number of passes,
+ * no matter how many shapes there are:
+ *		1) Give each pixel a label, joining the labels of touching pixels of
+ *		   the same colour with a union-find
+ *		2) Turn each label into its shape's number and find each shape's
+ *		   bounding box
+ *		3) For each shape, find the top and bottom most pixel in every column
+ *		   and the left and right most pixel in every row of its box
+ * The column and row extents of all the shapes are stored one after another
+ * in shared arrays. Shape n's columns start at getColumnOffset(n).
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.Arrays;
+
+public class ComponentLabeller
+{
+	private int width;
+	private int height;
+
+	// The shape number of each pixel (y * width + x), -1 if it is not in one
+	private int[] labels;
+	private int count;
+
+	// Bounding box of each shape
+	private int[] minX;
+	private int[] maxX;
+	private int[] minY;
+	private int[] maxY;
+
+	// Top/bottom y of each column and left/right x of each row of each shape
+	private int[] columnOffset;
+	private int[] rowOffset;
+	private int[] columnTop;
+	private int[] columnBottom;
+	private int[] rowLeft;
+	private int[] rowRight;
+
+	// Union-find parent of each provisional label
+	private int[] parent;
+
+	/** Labels all the shapes in a raster
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param ignored Pixels with one of these colours are not part of a shape
+	 */
+	public ComponentLabeller(int[] pixels, int width, int height, int stride, int[] ignored)
+	{
+		this.width = width;
+		this.height = height;
+		labels = new int[width * height];
+		parent = new int[64];
+
+		// Pass 1: provisional labels
+		int next = 0;
+		for (int y = 0; y < height; y ++)
+		{
+			for (int x = 0; x < width; x ++)
+			{
+				int colour = pixels[y * stride + x];
+				int index = y * width + x;
+				if (contains(ignored, colour))
+				{
+					labels[index] = -1;
+					continue;
+				}
+
+				boolean left = x > 0 && pixels[y * stride + x - 1] == colour;
+				boolean up = y > 0 && pixels[(y - 1) * stride + x] == colour;
+				if (left)
+				{
+					labels[index] = labels[index - 1];
+					if (up)
+						union(labels[index], labels[index - width]);
+				}
+				else if (up)
+					labels[index] = labels[index - width];
+				else
+				{
+					// A new label that is its own root
+					if (next == parent.length)
+						parent = Arrays.copyOf(parent, parent.length * 2);
+					parent[next] = next;
+					labels[index] = next++;
+				}
+			}
+		}
+
+		// Pass 2: shape numbers and bounding boxes
+		int [] shapeOf = new int[next];
+		Arrays.fill(shapeOf, -1);
+		minX = new int[next];
+		maxX = new int[next];
+		minY = new int[next];
+		maxY = new int[next];
+		for (int y = 0; y < height; y ++)
+		{
+			for (int x = 0; x < width; x ++)
+			{
+				int index = y * width + x;
+				if (labels[index] < 0)
+					continue;
+
+				int root = find(labels[index]);
+				int shape = shapeOf[root];
+				if (shape < 0)
+				{
+					// First pixel of a new shape
+					shape = count++;
+					shapeOf[root] = shape;
+					minX[shape] = x;
+					maxX[shape] = x;
+					minY[shape] = y;
+					maxY[shape] = y;
+				}
+				else
+				{
+					minX[shape] = Math.min(minX[shape], x);
+					maxX[shape] = Math.max(maxX[shape], x);
+					maxY[shape] = y;		// Rows are in order
+				}
+				labels[index] = shape;
+			}
+		}
+		parent = null;
+
+		// Pass 3: the extents of every column and row of every shape
+		columnOffset = new int[count + 1];
+		rowOffset = new int[count + 1];
+		for (int shape = 0; shape < count; shape ++)
+		{
+			columnOffset[shape + 1] = columnOffset[shape] + maxX[shape] - minX[shape] + 1;
+			rowOffset[shape + 1] = rowOffset[shape] + maxY[shape] - minY[shape] + 1;
+		}
+		columnTop = new int[columnOffset[count]];
+		columnBottom = new int[columnOffset[count]];
+		rowLeft = new int[rowOffset[count]];
+		rowRight = new int[rowOffset[count]];
+		Arrays.fill(columnTop, Integer.MAX_VALUE);
+		Arrays.fill(columnBottom, -1);
+		Arrays.fill(rowLeft, Integer.MAX_VALUE);
+		Arrays.fill(rowRight, -1);
+
+		for (int y = 0; y < height; y ++)
+		{
+			for (int x = 0; x < width; x ++)
+			{
+				int shape = labels[y * width + x];
+				if (shape < 0)
+					continue;
+
+				int column = columnOffset[shape] + x - minX[shape];
+				columnTop[column] = Math.min(columnTop[column], y);
+				columnBottom[column] = Math.max(columnBottom[column], y);
+				int row = rowOffset[shape] + y - minY[shape];
+				rowLeft[row] = Math.min(rowLeft[row], x);
+				rowRight[row] = Math.max(rowRight[row], x);
+			}
+		}
+	}
+
+	/** Get the number of shapes found
+	 * @return The number of shapes
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/** Get the shape a pixel belongs to
+	 * @param x The x coordinate of the pixel
+	 * @param y The y coordinate of the pixel
+	 * @return The shape number, or -1 if the pixel is not in a shape
+	 */
+	public int getLabel(int x, int y)
+	{
+		return labels[y * width + x];
+	}
+
+	/** Get the shape number of every pixel
+	 * @return The shape numbers as y * width + x (-1 if not in a shape)
+	 */
+	public int[] getLabels()
+	{
+		return labels;
+	}
+
+	/** Get the left most x of a shape
+	 * @param shape The shape number
+	 * @return The left most x of any pixel in the shape
+	 */
+	public int getMinX(int shape)
+	{
+		return minX[shape];
+	}
+
+	/** Get the right most x of a shape
+	 * @param shape The shape number
+	 * @return The right most x of any pixel in the shape
+	 */
+	public int getMaxX(int shape)
+	{
+		return maxX[shape];
+	}
+
+	/** Get the top most y of a shape
+	 * @param shape The shape number
+	 * @return The top most y of any pixel in the shape
+	 */
+	public int getMinY(int shape)
+	{
+		return minY[shape];
+	}
+
+	/** Get the bottom most y of a shape
+	 * @param shape The shape number
+	 * @return The bottom most y of any pixel in the shape
+	 */
+	public int getMaxY(int shape)
+	{
+		return maxY[shape];
+	}
+
+	/** Get where a shape's columns start in getColumnTop/getColumnBottom
+	 * @param shape The shape number
+	 * @return The index of the shape's column minX
+	 */
+	public int getColumnOffset(int shape)
+	{
+		return columnOffset[shape];
+	}
+
+	/** Get where a shape's rows start in getRowLeft/getRowRight
+	 * @param shape The shape number
+	 * @return The index of the shape's row minY
+	 */
+	public int getRowOffset(int shape)
+	{
+		return rowOffset[shape];
+	}
+
+	/** Get the top most y of every column of every shape
+	 * @return The array shared by all shapes (see getColumnOffset/getRowOffset)
+	 */
+	public int[] getColumnTop()
+	{
+		return columnTop;
+	}
+
+	/** Get the bottom most y of every column of every shape
+	 * @return The array shared by all shapes (see getColumnOffset/getRowOffset)
+	 */
+	public int[] getColumnBottom()
+	{
+		return columnBottom;
+	}
+
+	/** Get the left most x of every row of every shape
+	 * @return The array shared by all shapes (see getColumnOffset/getRowOffset)
+	 */
+	public int[] getRowLeft()
+	{
+		return rowLeft;
+	}
+
+	/** Get the right most x of every row of every shape
+	 * @return The array shared by all shapes (see getColumnOffset/getRowOffset)
+	 */
+	public int[] getRowRight()
+	{
+		return rowRight;
+	}
+
+	/** Finds the root label of a label (and shortens the path on the way)
+	 * @param label The label
+	 * @return The root label
+	 */
+	private int find(int label)
+	{
+		while (parent[label] != label)
+		{
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/** Joins the groups of two labels (the smaller root becomes the parent)
+	 * @param a The first label
+	 * @param b The second label
+	 */
+	private void union(int a, int b)
+	{
+		a = find(a);
+		b = find(b);
+		if (a < b)
+			parent[b] = a;
+		else if (b < a)
+			parent[a] = b;
+	}
+
+	/** Checks if a colour is in a list of colours
+	 * @param colours The list
+	 * @param colour The colour to look for
+	 * @return true if it is in the list
+	 */
+	private static boolean contains(int[] colours, int colour)
+	{
+		for (int c : colours)
+			if (c == colour)
+				return true;
+		return false;
+	}
+}
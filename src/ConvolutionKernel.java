@@ -0,0 +1,296 @@
+
+/** A grid of integer weights (a convolution kernel) that can be used to
+ * calculate each pixel from the pixels around it, e.g. to sharpen, emboss or
+ * find edges. The weights can be plain integers, or fixed point numbers by
+ * giving a divisor (e.g. weights out of 256 with a divisor of 256).
+ * Pixels far enough from the edges are done in a loop with no bounds checks
+ * at all. The pixels near the edges are done separately and use the kernel's
+ * EdgeMode to decide what to do with the weights that fall outside the image.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+public class ConvolutionKernel
+{
+	/** What to do with the weights that fall outside the image
+	 */
+	public enum EdgeMode
+	{
+		CLAMP,		// Use the nearest pixel on the edge
+		MIRROR,		// Reflect back into the image (the edge pixel is not repeated)
+		WRAP,		// Use the pixel from the opposite side of the image
+		SKIP		// Leave them out and only divide by the weights that were used
+	}
+
+	// The weights used to sharpen an image (the original 5x5 grid from sharpen)
+	final public static ConvolutionKernel SHARPEN = new ConvolutionKernel(new int[][] {
+			{-1, -1, -1, -1, -1},
+			{-1,  2,  2,  2, -1},
+			{-1,  2, 16,  2, -1},
+			{-1,  2,  2,  2, -1},
+			{-1, -1, -1, -1, -1} }, 16, 0, EdgeMode.SKIP);
+
+	// Makes the image look raised, flat areas become mid grey
+	final public static ConvolutionKernel EMBOSS = new ConvolutionKernel(new int[][] {
+			{-2, -1,  0},
+			{-1,  0,  1},
+			{ 0,  1,  2} }, 1, 128, EdgeMode.CLAMP);
+
+	// Highlights the edges (Laplacian), flat areas become black
+	final public static ConvolutionKernel EDGE_DETECT = new ConvolutionKernel(new int[][] {
+			{-1, -1, -1},
+			{-1,  8, -1},
+			{-1, -1, -1} }, 1, 0, EdgeMode.CLAMP);
+
+	private int width;
+	private int height;
+	private int[] weights;			// Row by row, width * height of them
+	private int sum;				// The total of all the weights
+	private int divisor;			// Divide the weighted total by this
+	private int offset;				// Then add this
+	private EdgeMode edgeMode;
+
+	/** Creates a kernel that is normalised by the total of its weights (or
+	 *		not at all if the total is not positive) and skips weights
+	 *		outside the image
+	 * @param matrix The weights, every row must be the same odd length and
+	 *		there must be an odd number of rows
+	 */
+	public ConvolutionKernel(int[][] matrix)
+	{
+		this(matrix, 0, 0, EdgeMode.SKIP);
+	}
+
+	/** Creates a kernel
+	 * @param matrix The weights, every row must be the same odd length and
+	 *		there must be an odd number of rows
+	 * @param divisor The weighted total is divided by this (0 means use the
+	 *		total of the weights, or 1 if that total is not positive)
+	 * @param offset This is added to each channel after dividing
+	 * @param edgeMode What to do with the weights that fall outside the image
+	 */
+	public ConvolutionKernel(int[][] matrix, int divisor, int offset, EdgeMode edgeMode)
+	{
+		height = matrix.length;
+		width = height == 0 ? 0 : matrix[0].length;
+		if (height % 2 == 0 || width % 2 == 0)
+			throw new IllegalArgumentException("Kernel must have an odd width and height: "
+					+ width + "x" + height);
+
+		weights = new int[width * height];
+		for (int row = 0; row < height; row ++)
+		{
+			if (matrix[row].length != width)
+				throw new IllegalArgumentException("Every row of a kernel must be the same length");
+			System.arraycopy(matrix[row], 0, weights, row * width, width);
+		}
+		for (int w : weights)
+			sum += w;
+
+		// Precompute the normalisation
+		if (divisor == 0)
+			divisor = sum > 0 ? sum : 1;
+		this.divisor = divisor;
+		this.offset = offset;
+		this.edgeMode = edgeMode;
+	}
+
+	/** Get a copy of this kernel that uses a different EdgeMode
+	 * @param mode What to do with the weights that fall outside the image
+	 * @return The new kernel
+	 */
+	public ConvolutionKernel withEdgeMode(EdgeMode mode)
+	{
+		int [][] matrix = new int[height][width];
+		for (int row = 0; row < height; row ++)
+			System.arraycopy(weights, row * width, matrix[row], 0, width);
+		return new ConvolutionKernel(matrix, divisor, offset, mode);
+	}
+
+	/** Get the number of columns of weights
+	 * @return The width of this kernel
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/** Get the number of rows of weights
+	 * @return The height of this kernel
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/** Get what this kernel does with the weights outside the image
+	 * @return The EdgeMode of this kernel
+	 */
+	public EdgeMode getEdgeMode()
+	{
+		return edgeMode;
+	}
+
+	/** Applies this kernel to every pixel of a raster. The rows are done in
+	 *		parallel bands, each band only writes to its own rows of dst.
+	 * @param src The raster to read from (not changed)
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param srcStride The distance between the start of two rows in src
+	 * @param dst The raster to write to (must not be src)
+	 * @param dstStride The distance between the start of two rows in dst
+	 */
+	public void convolve(final int[] src, final int width, final int height, final int srcStride,
+			final int[] dst, final int dstStride)
+	{
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				convolveRows(src, width, height, srcStride, dst, dstStride, startRow, endRow);
+			}
+		});
+	}
+
+	/** Applies this kernel to a band of rows of a raster
+	 * @param src The raster to read from (not changed)
+	 * @param w The number of pixels in a row
+	 * @param h The number of rows
+	 * @param srcStride The distance between the start of two rows in src
+	 * @param dst The raster to write to (must not be src)
+	 * @param dstStride The distance between the start of two rows in dst
+	 * @param startRow The first row to calculate
+	 * @param endRow One past the last row to calculate
+	 */
+	public void convolveRows(int[] src, int w, int h, int srcStride,
+			int[] dst, int dstStride, int startRow, int endRow)
+	{
+		int rx = width / 2;
+		int ry = height / 2;
+
+		// Index of each weight's pixel relative to the centre pixel
+		int [] taps = new int[weights.length];
+		for (int dy = -ry; dy <= ry; dy ++)
+			for (int dx = -rx; dx <= rx; dx ++)
+				taps[(dy + ry) * width + dx + rx] = dy * srcStride + dx;
+
+		for (int y = startRow; y < endRow; y ++)
+		{
+			// Rows near the top and bottom are all border pixels
+			if (y < ry || y >= h - ry)
+			{
+				for (int x = 0; x < w; x ++)
+					dst[y * dstStride + x] = convolveBorder(src, w, h, srcStride, x, y);
+				continue;
+			}
+
+			// Left and right edges
+			for (int x = 0; x < Math.min(rx, w); x ++)
+				dst[y * dstStride + x] = convolveBorder(src, w, h, srcStride, x, y);
+			for (int x = Math.max(rx, w - rx); x < w; x ++)
+				dst[y * dstStride + x] = convolveBorder(src, w, h, srcStride, x, y);
+
+			// Interior: every weight lands inside the image, no checks needed
+			for (int x = rx; x < w - rx; x ++)
+			{
+				int centre = y * srcStride + x;
+				int red = 0, green = 0, blue = 0;
+				for (int i = 0; i < taps.length; i ++)
+				{
+					int colour = src[centre + taps[i]];
+					int weight = weights[i];
+					red += ((colour >> 16) & 0xFF) * weight;
+					green += ((colour >> 8) & 0xFF) * weight;
+					blue += (colour & 0xFF) * weight;
+				}
+				dst[y * dstStride + x] = getValue(red, green, blue, divisor);
+			}
+		}
+	}
+
+	/** Calculates one pixel near the edge of the image using the EdgeMode
+	 * @param src The raster to read from
+	 * @param w The number of pixels in a row
+	 * @param h The number of rows
+	 * @param srcStride The distance between the start of two rows in src
+	 * @param x The x coordinate of the pixel
+	 * @param y The y coordinate of the pixel
+	 * @return The new colour of the pixel
+	 */
+	private int convolveBorder(int[] src, int w, int h, int srcStride, int x, int y)
+	{
+		int rx = width / 2;
+		int ry = height / 2;
+		int red = 0, green = 0, blue = 0;
+		int usedWeight = 0;
+
+		for (int dy = -ry; dy <= ry; dy ++)
+		{
+			int yy = edgeIndex(y + dy, h);
+			if (yy < 0)
+				continue;		// Skipped
+			for (int dx = -rx; dx <= rx; dx ++)
+			{
+				int xx = edgeIndex(x + dx, w);
+				if (xx < 0)
+					continue;	// Skipped
+
+				int weight = weights[(dy + ry) * width + dx + rx];
+				int colour = src[yy * srcStride + xx];
+				red += Pixel.red(colour) * weight;
+				green += Pixel.green(colour) * weight;
+				blue += Pixel.blue(colour) * weight;
+				usedWeight += weight;
+			}
+		}
+
+		// A normalised kernel that skipped some weights only divides by the
+		// weights it used (the original sharpen did this)
+		int div = divisor;
+		if (edgeMode == EdgeMode.SKIP && divisor == sum && usedWeight > 0)
+			div = usedWeight;
+		return getValue(red, green, blue, div);
+	}
+
+	/** Moves a coordinate that is outside the image back inside using the
+	 *		EdgeMode
+	 * @param i The coordinate
+	 * @param size The width or height of the image
+	 * @return The coordinate to use, or -1 if it should be skipped
+	 */
+	private int edgeIndex(int i, int size)
+	{
+		if (i >= 0 && i < size)
+			return i;
+
+		switch (edgeMode)
+		{
+			case CLAMP:
+				return i < 0 ? 0 : size - 1;
+			case MIRROR:
+				if (size == 1)
+					return 0;
+				int period = 2 * (size - 1);
+				i = Math.abs(i) % period;
+				return i < size ? i : period - i;
+			case WRAP:
+				return ((i % size) + size) % size;
+			default:
+				return -1;
+		}
+	}
+
+	/** Divides the totals, adds the offset and packs them into a colour
+	 * @param red The weighted total of the Red values
+	 * @param green The weighted total of the Green values
+	 * @param blue The weighted total of the Blue values
+	 * @param div The value to divide each total by
+	 * @return A 32 bit colour with an Alpha of 255
+	 */
+	private int getValue(int red, int green, int blue, int div)
+	{
+		if (offset == 0)
+			return Pixel.getAverageValue(red, green, blue, div);
+		return 0xFF000000 | Pixel.clamp(red / div + offset) << 16
+				| Pixel.clamp(green / div + offset) << 8 | Pixel.clamp(blue / div + offset);
+	}
+}
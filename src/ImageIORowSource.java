@@ -0,0 +1,80 @@
+
+/** Reads the rows of any image that ImageIO can read (e.g. JPEG), a strip
+ * at a time, by asking the ImageReader for just that part of the image.
+ * Only the strip is kept in memory, but some readers decode the image from
+ * the start again for every strip, so PngRowReader is much faster for PNGs.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class ImageIORowSource implements RowSource
+{
+	private ImageInputStream stream;
+	private ImageReader reader;
+	private int width;
+	private int height;
+	private int rowsRead;
+
+	/** Opens an image file
+	 * @param file The image file
+	 * @throws IOException if the file cannot be read or is not an image
+	 */
+	public ImageIORowSource(File file) throws IOException
+	{
+		if (!file.isFile())
+			throw new java.io.FileNotFoundException("No such image file: " + file);
+		stream = ImageIO.createImageInputStream(file);
+		if (stream == null)
+			throw new IOException("Cannot read image file: " + file);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext())
+		{
+			stream.close();
+			throw new IOException("Not a supported image format: " + file);
+		}
+		reader = readers.next();
+		reader.setInput(stream, true, true);
+		width = reader.getWidth(0);
+		height = reader.getHeight(0);
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public void readRows(int[] pixels, int offset, int stride, int count) throws IOException
+	{
+		if (rowsRead + count > height)
+			throw new IOException("Only " + height + " rows in the image");
+
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(0, rowsRead, width, count));
+		BufferedImage strip = reader.read(0, param);
+		int [] rows = PictureIO.getRaster(strip);
+		for (int r = 0; r < count; r ++)
+			System.arraycopy(rows, r * width, pixels, offset + r * stride, width);
+		rowsRead += count;
+	}
+
+	public void close() throws IOException
+	{
+		reader.dispose();
+		stream.close();
+	}
+}
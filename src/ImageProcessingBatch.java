@@ -0,0 +1,435 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Processes a directory of images from the command line, with no window.
+ * Usage: java ImageProcessingBatch [-threads n] [-format f] [-strip rows] [-pyramid levels]
+ *		[-cache MB] [-cacheDir dir] [-metrics] input ops outputDir
+ *		input		A directory (every image in it) or a glob (e.g. "res/*.png")
+ *		ops			Effects to apply in order, e.g. "shrink,sharpen,bw"
+ *		outputDir	Where to save the results (same base name)
+ *		-format		png (the default), jpg, bmp or gif, or argb for a memory
+ *					mapped raster file (see MappedRaster, only with -strip)
+ *		-strip		Process each image this many rows at a time instead of
+ *					loading all of it (for images bigger than memory, the
+ *					results are PNG or argb)
+ *		-pyramid	Save each result at this many sizes, each half the size
+ *					of the one before (see ImagePyramid)
+ *		-cache		Remember this many MB of results, so images that have
+ *					been seen before are not processed again (see ResultCache)
+ *		-cacheDir	Also save the remembered results in this directory,
+ *					for later runs
+ *		-metrics	Measure the effects and print the times at the end (see
+ *					PictureMetrics)
+ * The images are processed at the same time by a fixed number of threads.
+ * @author Jerry Yu
+ * @version October 2012
+ */
+public class ImageProcessingBatch
+{
+	final private static String[] IMAGE_EXTENSIONS = {"png", "jpg", "jpeg", "gif", "bmp"};
+
+	private List<PictureOperation> ops;
+	private File outputDir;
+	private int threads;
+	private String format;
+	private StripProcessor strips;
+	private int pyramidLevels;
+	private ImagePyramid pyramid;
+	private ResultCache cache;
+
+	/** Creates a batch that applies the same effects to every image
+	 * @param ops The effects to apply, in order
+	 * @param outputDir The directory to save the results in
+	 * @param threads The number of images to process at the same time
+	 * @param format The format to save the results in (e.g. "png")
+	 */
+	public ImageProcessingBatch(List<PictureOperation> ops, File outputDir, int threads, String format)
+	{
+		this.ops = ops;
+		this.outputDir = outputDir;
+		this.threads = threads;
+		this.format = format;
+	}
+
+	/** Makes this batch process each image in strips of rows, so that images
+	 *		of any height can be processed (the results are PNGs unless the
+	 *		format is argb)
+	 * @param stripRows The number of rows to process at a time
+	 * @throws IllegalArgumentException if one of the effects needs the whole image
+	 */
+	public void setStripRows(int stripRows)
+	{
+		strips = new StripProcessor(ops, stripRows);
+	}
+
+	/** Makes this batch save each result at several sizes, from one decode
+	 * @param levels The number of sizes, including the full size
+	 * @throws IllegalArgumentException if the images are processed in strips
+	 */
+	public void setPyramidLevels(int levels)
+	{
+		if (levels < 1)
+			throw new IllegalArgumentException("A pyramid needs at least 1 level: " + levels);
+		if (strips != null)
+			throw new IllegalArgumentException("A pyramid cannot be made in strips");
+		pyramidLevels = levels;
+	}
+
+	/** Makes this batch remember its results, so that images with the same
+	 *		colours are only processed once
+	 * @param cache The cache to use, or null to process every image
+	 * @throws IllegalArgumentException if the images are processed in strips
+	 */
+	public void setCache(ResultCache cache)
+	{
+		if (cache != null && strips != null)
+			throw new IllegalArgumentException("Results cannot be cached when processing in strips");
+		this.cache = cache;
+	}
+
+	/** Processes all the given images, a fixed number at a time. Errors are
+	 *		reported for each image and do not stop the others.
+	 * @param inputs The image files
+	 * @return The number of images that could not be processed
+	 * @throws IllegalArgumentException if two inputs would be saved to the
+	 *		same output file (nothing is processed)
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int run(List<File> inputs) throws InterruptedException
+	{
+		checkOutputNames(inputs);
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+			throw new IllegalArgumentException("Could not create output directory: " + outputDir);
+
+		// A small queue in front of the workers, when it is full the main
+		// thread processes the next image itself instead of queueing more
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 2),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		final AtomicInteger failed = new AtomicInteger();
+
+		// The levels of each pyramid are saved by their own threads, so the
+		// workers can go on making the smaller levels
+		ExecutorService encoders = null;
+		if (pyramidLevels > 0)
+		{
+			encoders = Executors.newFixedThreadPool(threads);
+			pyramid = new ImagePyramid(pyramidLevels, encoders);
+		}
+
+		for (final File input : inputs)
+		{
+			pool.execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						process(input);
+					}
+					catch (Exception exp)
+					{
+						failed.incrementAndGet();
+						System.err.println(input + ": " + exp.getMessage());
+					}
+				}
+			});
+		}
+
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		if (encoders != null)
+			encoders.shutdown();
+		return failed.get();
+	}
+
+	/** Checks that no two inputs have the same base name (e.g. photo.jpg and
+	 *		photo.bmp, or photo.png in two directories), since their results
+	 *		would be saved to the same file, at the same time if they are in
+	 *		different threads. Names that only differ in case also clash, as
+	 *		they do on some file systems.
+	 * @param inputs The image files
+	 * @throws IllegalArgumentException listing the inputs that clash
+	 */
+	private static void checkOutputNames(List<File> inputs)
+	{
+		Map<String, List<File>> byName = new TreeMap<String, List<File>>();
+		for (File input : inputs)
+		{
+			String name = baseName(input).toLowerCase(Locale.ROOT);
+			List<File> same = byName.get(name);
+			if (same == null)
+			{
+				same = new ArrayList<File>();
+				byName.put(name, same);
+			}
+			same.add(input);
+		}
+
+		StringBuilder clashes = new StringBuilder();
+		for (List<File> same : byName.values())
+			if (same.size() > 1)
+				clashes.append(System.lineSeparator()).append("  ").append(same);
+		if (clashes.length() > 0)
+			throw new IllegalArgumentException("These inputs would be saved to the same output file:"
+					+ clashes + System.lineSeparator() + "Rename them or process them separately");
+	}
+
+	/** Loads one image, applies the effects and saves it
+	 * @param input The image file
+	 * @throws IOException if the image could not be loaded or saved
+	 */
+	private void process(File input) throws IOException
+	{
+		long start = System.nanoTime();
+		if (strips != null)
+		{
+			String extension = format.equals(MappedRaster.EXTENSION) ? format : "png";
+			File output = new File(outputDir, baseName(input) + "." + extension);
+			strips.process(input, output);
+			System.out.printf("%s -> %s (in strips, %d ms)%n", input, output,
+					(System.nanoTime() - start) / 1000000);
+			return;
+		}
+
+		Picture picture = new Picture(input, null);
+		if (cache != null)
+		{
+			Picture result = cache.apply(picture, ops);
+			picture.dispose();
+			picture = result;
+		}
+		else
+			PictureOperation.applyAll(picture, ops);
+
+		if (pyramid != null)
+		{
+			List<ImagePyramid.Level> levels = pyramid.write(picture, outputDir, baseName(input), format);
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%s -> %d levels (%d ms)%n", input, levels.size(),
+					(System.nanoTime() - start) / 1000000));
+			for (ImagePyramid.Level level : levels)
+				report.append("  ").append(level).append(System.lineSeparator());
+			System.out.print(report);
+			picture.dispose();
+			return;
+		}
+
+		File output = new File(outputDir, baseName(input) + "." + format);
+		picture.save(output);
+
+		System.out.printf("%s -> %s (%dx%d, %d ms)%n", input, output,
+				picture.getWidth(), picture.getHeight(), (System.nanoTime() - start) / 1000000);
+		// The next image can use its rasters
+		picture.dispose();
+	}
+
+	/** Finds the image files for a directory or glob
+	 * @param input A directory, a single file or a glob (e.g. "res/*.png")
+	 * @return The matching image files, sorted by name
+	 * @throws IOException if the directory could not be read
+	 */
+	public static List<File> findInputs(String input) throws IOException
+	{
+		List<File> files = new ArrayList<File>();
+		File file = new File(input);
+		if (file.isFile())
+			files.add(file);
+		else if (file.isDirectory())
+		{
+			File [] children = file.listFiles();
+			if (children != null)
+				for (File child : children)
+					if (child.isFile() && isImage(child))
+						files.add(child);
+		}
+		else
+		{
+			// A glob, search from the directory before the first wildcard
+			int wildcard = firstWildcard(input);
+			int slash = input.lastIndexOf('/', wildcard);
+			Path root = Paths.get(slash < 0 ? "." : input.substring(0, slash + 1));
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+					"glob:" + (slash < 0 ? input : input.substring(slash + 1)));
+			try (Stream<Path> paths = Files.walk(root))
+			{
+				Iterator<Path> it = paths.iterator();
+				while (it.hasNext())
+				{
+					Path path = it.next();
+					if (Files.isRegularFile(path) && matcher.matches(root.relativize(path)))
+						files.add(path.toFile());
+				}
+			}
+		}
+
+		Collections.sort(files);
+		return files;
+	}
+
+	/** Get the index of the first glob wildcard in a path
+	 * @param pattern The path
+	 * @return The index, or the length of the path if there is none
+	 */
+	private static int firstWildcard(String pattern)
+	{
+		for (int i = 0; i < pattern.length(); i ++)
+			if ("*?[{".indexOf(pattern.charAt(i)) >= 0)
+				return i;
+		return pattern.length();
+	}
+
+	/** Checks if a file has one of the image extensions
+	 * @param file The file
+	 * @return true if it looks like an image
+	 */
+	private static boolean isImage(File file)
+	{
+		String name = file.getName().toLowerCase();
+		for (String extension : IMAGE_EXTENSIONS)
+			if (name.endsWith("." + extension))
+				return true;
+		return false;
+	}
+
+	/** Get the name of a file without its extension
+	 * @param file The file
+	 * @return The name up to the last dot
+	 */
+	private static String baseName(File file)
+	{
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/** Prints how to use this program and exits
+	 */
+	private static void usage()
+	{
+		System.err.println("Usage: java ImageProcessingBatch [-threads n] [-format f] [-strip rows] [-pyramid levels]");
+		System.err.println("       [-cache MB] [-cacheDir dir] [-metrics] input ops outputDir");
+		System.err.println("  input      a directory or a glob, e.g. \"res/*.png\"");
+		System.err.println("  ops        effects in order, separated by commas: " + PictureOperation.names());
+		System.err.println("  outputDir  where to save the results");
+		System.err.println("  -format    png (the default), jpg, bmp or gif (or argb with -strip)");
+		System.err.println("  -strip     process this many rows at a time (PNG output, no shapes)");
+		System.err.println("  -pyramid   save each result at this many sizes, halving each time");
+		System.err.println("  -cache     remember this many MB of results to skip repeated images");
+		System.err.println("  -cacheDir  also save the remembered results in this directory");
+		System.err.println("  -metrics   print the time taken by each effect at the end");
+		System.exit(2);
+	}
+
+	/** Runs the batch from the command line
+	 * @param args [-threads n] [-format f] input ops outputDir
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		// No screen is needed (or wanted) on render nodes
+		System.setProperty("java.awt.headless", "true");
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		String format = "png";
+		int stripRows = 0;
+		int pyramidLevels = 0;
+		long cacheMB = -1;
+		File cacheDir = null;
+		List<String> rest = new ArrayList<String>();
+		for (int i = 0; i < args.length; i ++)
+		{
+			if (args[i].equals("-threads") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-format") && i + 1 < args.length)
+				format = args[++i].toLowerCase();
+			else if (args[i].equals("-strip") && i + 1 < args.length)
+				stripRows = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-pyramid") && i + 1 < args.length)
+				pyramidLevels = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-cache") && i + 1 < args.length)
+				cacheMB = Long.parseLong(args[++i]);
+			else if (args[i].equals("-cacheDir") && i + 1 < args.length)
+				cacheDir = new File(args[++i]);
+			else if (args[i].equals("-metrics"))
+				PictureMetrics.setEnabled(true);
+			else
+				rest.add(args[i]);
+		}
+		if (rest.size() != 3 || threads < 1)
+			usage();
+		try
+		{
+			if (format.equals(MappedRaster.EXTENSION) && stripRows == 0)
+				throw new IOException("The argb format can only be used with -strip");
+			if (!format.equals(MappedRaster.EXTENSION))
+				PictureIO.getFormat(new File("output." + format));
+		}
+		catch (IOException exp)
+		{
+			System.err.println(exp.getMessage());
+			usage();
+		}
+
+		List<PictureOperation> ops = null;
+		try
+		{
+			ops = PictureOperation.parseList(rest.get(1));
+		}
+		catch (IllegalArgumentException exp)
+		{
+			System.err.println(exp.getMessage());
+			usage();
+		}
+
+		List<File> inputs = findInputs(rest.get(0));
+		if (inputs.isEmpty())
+		{
+			System.err.println("No images found for " + rest.get(0));
+			System.exit(1);
+		}
+
+		ImageProcessingBatch batch = new ImageProcessingBatch(ops, new File(rest.get(2)), threads, format);
+		try
+		{
+			if (stripRows > 0)
+				batch.setStripRows(stripRows);
+			if (pyramidLevels > 0)
+				batch.setPyramidLevels(pyramidLevels);
+			if (cacheMB >= 0 || cacheDir != null)
+				batch.setCache(new ResultCache(Math.max(cacheMB, 0) << 20, cacheDir));
+		}
+		catch (IllegalArgumentException exp)
+		{
+			System.err.println(exp.getMessage());
+			usage();
+		}
+		int failed = 0;
+		try
+		{
+			failed = batch.run(inputs);
+		}
+		catch (IllegalArgumentException exp)
+		{
+			System.err.println(exp.getMessage());
+			System.exit(1);
+		}
+		System.out.println((inputs.size() - failed) + " of " + inputs.size() + " images processed");
+		if (batch.cache != null)
+			System.out.println(batch.cache);
+		if (PictureMetrics.isEnabled())
+			System.out.print(PictureMetrics.getReport());
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
@@ -5,7 +5,6 @@ import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.*;
-import java.util.LinkedList;
 
 /**
  * Processes an image
@@ -30,7 +29,7 @@ public class ImageProcessingMain extends JFrame
 
 	// Keeps track of the Picture objects
 	private Picture currentPicture;
-	private LinkedList<Picture> previousPictures;
+	private UndoHistory history;
 
 	// Used to show Pixel data
 	private JLabel pixelInfo;
@@ -45,8 +44,8 @@ public class ImageProcessingMain extends JFrame
 		setLocation(250, 20);
 		setLayout(new BorderLayout());
 		
-		// Set up list of previous pictures for undo
-		previousPictures = new LinkedList<Picture>();
+		// Set up the undo history (its memory budget limits the undo steps)
+		history = new UndoHistory();
 		
 		// Load up a default Picture and the panel for the Picture
 		currentPicture = new Picture(DEFAULT_FILE_NAME, this);
@@ -67,17 +66,24 @@ public class ImageProcessingMain extends JFrame
 			}
 		});
 
+		JMenuItem saveMenuItem = new JMenuItem("Save As...", 'S');
+		saveMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event)
+			{
+				saveImage();
+			}
+		});
+
 		undoMenuItem = new JMenuItem("Undo");
 		undoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z,
 				InputEvent.CTRL_MASK));
 		undoMenuItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent event)
 			{
-				if (!previousPictures.isEmpty())
-					currentPicture = previousPictures.removeLast();
-				if (previousPictures.isEmpty())
+				history.undo(currentPicture);
+				if (!history.canUndo())
 					undoMenuItem.setEnabled(false);
-				repaint();
+				repaintPicture();
 			}
 		});
 		undoMenuItem.setEnabled(false);
@@ -91,6 +97,7 @@ public class ImageProcessingMain extends JFrame
 		});
 
 		fileMenu.add(loadMenuItem);
+		fileMenu.add(saveMenuItem);
 		fileMenu.add(undoMenuItem);
 		fileMenu.addSeparator();
 		fileMenu.add(quitMenuItem);
@@ -123,10 +130,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				currentPicture.flip();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.FLIP);
+				repaintPicture();
 			}
 		});
 		
@@ -137,10 +143,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				currentPicture.negative();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.NEGATIVE);
+				repaintPicture();
 			}
 		});
 		JButton bAndW = new JButton("B & W");
@@ -149,10 +154,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				currentPicture.blackAndWhite();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.BLACK_AND_WHITE);
+				repaintPicture();
 			}
 		});
 		JButton blur = new JButton("Blur");
@@ -161,10 +165,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				currentPicture.blur();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.BLUR);
+				repaintPicture();
 			}
 		});
 
@@ -174,10 +177,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				currentPicture.sharpen();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.SHARPEN);
+				repaintPicture();
 			}
 		});
 		
@@ -187,10 +189,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				currentPicture.shrink();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.SHRINK);
+				repaintPicture();
 			}
 		});
 		JButton somethingElse = new JButton("Snape");
@@ -199,11 +200,9 @@ public class ImageProcessingMain extends JFrame
 			{
 				if (currentPicture == null)
 					return;
-				// Make a copy of the current Picture (for undo)
-				saveCurrentPicture();
-				
-				currentPicture.shapes();
-				repaint();
+				// Apply the effect and remember how to undo it
+				applyEffect(PictureOperation.SHAPES);
+				repaintPicture();
 			}
 		});
 	
@@ -225,13 +224,13 @@ public class ImageProcessingMain extends JFrame
 		add(topPanel, BorderLayout.NORTH);
 	}
 	
-	private void saveCurrentPicture()
+	/** Applies an effect to the current Picture so that it can be undone
+	 * @param op The effect
+	 */
+	private void applyEffect(PictureOperation op)
 	{
-		previousPictures.addLast(new Picture(currentPicture));
-		// Only allow up to 5 undo steps (to save on memory)
-		if (previousPictures.size() > 5)
-			previousPictures.removeFirst();
-		undoMenuItem.setEnabled(true);
+		history.apply(currentPicture, op);
+		undoMenuItem.setEnabled(history.canUndo());
 	}
 
 	public void loadNewImage()
@@ -246,8 +245,18 @@ public class ImageProcessingMain extends JFrame
 		if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
 		{
 			File file = fileChooser.getSelectedFile();
-			currentPicture = new Picture(file.getAbsolutePath(), this);
-			previousPictures = new LinkedList<Picture>();
+			try
+			{
+				currentPicture = new Picture(file, this);
+			}
+			catch (IOException exp)
+			{
+				JOptionPane.showMessageDialog(this, exp.getMessage(),
+						"Could not load image", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			history.clear();
+			undoMenuItem.setEnabled(false);
 
 			// Recreate the picture area to match the size of the image
 			pictureArea.setPreferredSize(new Dimension(Math.max(
@@ -258,12 +267,53 @@ public class ImageProcessingMain extends JFrame
 		}
 	}
 
+	public void saveImage()
+	{
+		if (currentPicture == null)
+			return;
+
+		// Set up a FileChooser Dialog to pick where to save the image
+		JFileChooser fileChooser = new JFileChooser(".");
+		FileFilter filter = new FileNameExtensionFilter(
+				"Image files (png, jpg etc.)", "png", "jpg", "jpeg", "bmp", "gif");
+		fileChooser.setFileFilter(filter);
+
+		if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION)
+		{
+			// Default to PNG if no extension was typed in
+			File file = fileChooser.getSelectedFile();
+			if (file.getName().indexOf('.') < 0)
+				file = new File(file.getPath() + ".png");
+			try
+			{
+				currentPicture.save(file);
+			}
+			catch (IOException exp)
+			{
+				JOptionPane.showMessageDialog(this, exp.getMessage(),
+						"Could not save image", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+
 	public void refresh()
 	{
+		// Everything is drawn, so the changes so far do not matter
+		if (currentPicture != null)
+			currentPicture.takeDirtyRegion();
 		pictureArea.paintImmediately(new Rectangle(0, 0,
 				pictureArea.getWidth(), pictureArea.getHeight()));
 	}
 
+	/** Draws again only the part of the Picture that changed
+	 */
+	private void repaintPicture()
+	{
+		Rectangle dirty = currentPicture.takeDirtyRegion();
+		if (dirty != null)
+			pictureArea.repaint(dirty);
+	}
+
 	/** Inner class for the drawing area for the Picture
 	 */
 	private class PicturePanel extends JPanel
@@ -304,10 +354,11 @@ public class ImageProcessingMain extends JFrame
 			if (currentPicture != null)
 			{
 				// Did we agree to do floodFill ????
-				saveCurrentPicture();
+				history.begin(currentPicture);
 				currentPicture.floodFill(event.getX(), event.getY());
-				currentPicture.updateImage();
-				repaint();
+				if (history.commit(currentPicture))
+					undoMenuItem.setEnabled(true);
+				repaintPicture();
 			}
 		}
 	}
@@ -0,0 +1,201 @@
+
+/** Saves an image at several sizes (a pyramid) from a single decode. Level
+ * 0 is the image itself and each level after it is the one before it
+ * shrunk by half (the same averaging as Picture.shrink()), so every level
+ * only reads the level just above it instead of the full image. Each level
+ * is saved as soon as it is made, and with an executor the saving happens
+ * in the background while the next level is being made.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class ImagePyramid
+{
+	private int levels;
+	private ExecutorService encoders;
+
+	/** One saved level and how long it took
+	 */
+	public static class Level
+	{
+		private int level;
+		private int width;
+		private int height;
+		private File file;
+		private long buildNanos;
+		private long encodeNanos;
+
+		/** Get the number of the level (0 is the full size)
+		 * @return The level
+		 */
+		public int getLevel()
+		{
+			return level;
+		}
+
+		/** Get the width of this level
+		 * @return The width in pixels
+		 */
+		public int getWidth()
+		{
+			return width;
+		}
+
+		/** Get the height of this level
+		 * @return The height in pixels
+		 */
+		public int getHeight()
+		{
+			return height;
+		}
+
+		/** Get the file this level was saved to
+		 * @return The file
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/** Get the time it took to make this level from the one before it
+		 * @return The time in nanoseconds (0 for level 0)
+		 */
+		public long getBuildNanos()
+		{
+			return buildNanos;
+		}
+
+		/** Get the time it took to encode and save this level
+		 * @return The time in nanoseconds
+		 */
+		public long getEncodeNanos()
+		{
+			return encodeNanos;
+		}
+
+		public String toString()
+		{
+			return String.format("%d: %dx%d build %.1f ms, encode %.1f ms -> %s", level, width, height,
+					buildNanos / 1e6, encodeNanos / 1e6, file);
+		}
+	}
+
+	/** Creates a pyramid builder
+	 * @param levels The number of levels, including the full size
+	 * @param encoders Saves the levels in the background, or null to save
+	 *		each one before making the next (not shut down by this class)
+	 */
+	public ImagePyramid(int levels, ExecutorService encoders)
+	{
+		if (levels < 1)
+			throw new IllegalArgumentException("A pyramid needs at least 1 level: " + levels);
+		this.levels = levels;
+		this.encoders = encoders;
+	}
+
+	/** Get the name a level is saved under
+	 * @param dir The directory the levels are saved in
+	 * @param baseName The name of the image without an extension
+	 * @param level The level
+	 * @param format The extension (e.g. "png")
+	 * @return The file, e.g. dir/photo-2.png
+	 */
+	public static File getFile(File dir, String baseName, int level, String format)
+	{
+		return new File(dir, baseName + "-" + level + "." + format);
+	}
+
+	/** Saves every level of a picture. Stops early once a level is 1 pixel
+	 *		wide or high, since it cannot be shrunk any further.
+	 * @param picture The full size picture (not changed)
+	 * @param dir The directory to save the levels in
+	 * @param baseName The name of the image without an extension
+	 * @param format The format to save in (e.g. "png")
+	 * @return The levels that were saved, largest first
+	 * @throws IOException if a level could not be saved
+	 */
+	public List<Level> write(Picture picture, File dir, String baseName, String format) throws IOException
+	{
+		List<Level> saved = new ArrayList<Level>();
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		List<Picture> made = new ArrayList<Picture>();
+		try
+		{
+			Picture current = picture;
+			for (int i = 0; i < levels; i ++)
+			{
+				final Level level = new Level();
+				if (i > 0)
+				{
+					if (current.getWidth() <= 1 || current.getHeight() <= 1)
+						break;
+					long start = System.nanoTime();
+					current = current.getShrunk();
+					made.add(current);
+					level.buildNanos = System.nanoTime() - start;
+				}
+				level.level = i;
+				level.width = current.getWidth();
+				level.height = current.getHeight();
+				level.file = getFile(dir, baseName, i, format);
+				saved.add(level);
+
+				// Each level is a new raster that is never changed again, so it
+				// can be saved while the next one is made from it
+				final Picture toSave = current;
+				if (encoders == null)
+					save(toSave, level);
+				else
+					pending.add(encoders.submit(new Callable<Void>() {
+						public Void call() throws IOException
+						{
+							save(toSave, level);
+							return null;
+						}
+					}));
+			}
+
+			for (Future<?> future : pending)
+				future.get();
+
+			// Every level is saved, the rasters of the ones made here can be used again
+			for (Picture level : made)
+				level.dispose();
+		}
+		catch (InterruptedException exp)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while saving " + baseName, exp);
+		}
+		catch (ExecutionException exp)
+		{
+			if (exp.getCause() instanceof IOException)
+				throw (IOException) exp.getCause();
+			throw new IOException("Could not save " + baseName + ": " + exp.getCause(), exp.getCause());
+		}
+		finally
+		{
+			for (Future<?> future : pending)
+				future.cancel(false);
+		}
+		return saved;
+	}
+
+	/** Encodes and saves one level, and records how long it took
+	 * @param picture The level
+	 * @param level Where to save it and record the time
+	 * @throws IOException if it could not be saved
+	 */
+	private static void save(Picture picture, Level level) throws IOException
+	{
+		long start = System.nanoTime();
+		PictureIO.write(picture, level.file);
+		level.encodeNanos = System.nanoTime() - start;
+	}
+}
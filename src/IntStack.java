@@ -0,0 +1,55 @@
+
+/** A stack of ints that grows as needed. Used instead of a Stack or Queue of
+ * Points so that pushing a coordinate does not create any objects.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.Arrays;
+
+public class IntStack
+{
+	private int[] values;
+	private int size;
+
+	/** Creates a new empty stack
+	 * @param capacity The number of values it can hold before it has to grow
+	 */
+	public IntStack(int capacity)
+	{
+		values = new int[Math.max(1, capacity)];
+	}
+
+	/** Adds a value to the top of the stack
+	 * @param value The value to add
+	 */
+	public void push(int value)
+	{
+		if (size == values.length)
+			values = Arrays.copyOf(values, values.length * 2);
+		values[size++] = value;
+	}
+
+	/** Removes the value at the top of the stack
+	 * @return The value that was removed
+	 */
+	public int pop()
+	{
+		return values[--size];
+	}
+
+	/** Checks if there is anything left on the stack
+	 * @return true if the stack is empty, false otherwise
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/** Removes everything from the stack (keeps the memory)
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+}
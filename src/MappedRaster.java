@@ -0,0 +1,378 @@
+
+/** A raster of 32 bit ARGB colours kept in a memory mapped file instead of
+ * an array, for images that are too big for the heap. The operating system
+ * pages the parts that are in use in and out, the garbage collector never
+ * sees the pixels, and the file stays behind so the result of one step
+ * can be used by the next without decoding the image again.
+ * The file is a 16 byte header ("ARGB", a version, the width and the
+ * height) and then the colours row by row (little endian). A mapping can
+ * be at most 2GB, so the rows are mapped in chunks of up to 1GB.
+ * It can be read and written in strips by StripProcessor (see getSource()
+ * and createSink()), and point effects can be done on it in place.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class MappedRaster implements Closeable
+{
+	// The file extension used for mapped rasters
+	final public static String EXTENSION = "argb";
+
+	final private static int MAGIC = 0x41524742;		// "ARGB"
+	final private static int VERSION = 1;
+	final private static int HEADER_BYTES = 16;
+	final private static long MAX_CHUNK_BYTES = 1L << 30;
+
+	private FileChannel channel;
+	private boolean writable;
+	private int width;
+	private int height;
+
+	// Each chunk holds rowsPerChunk rows (the last one may hold fewer)
+	private int rowsPerChunk;
+	private MappedByteBuffer[] mappings;
+	private IntBuffer[] chunks;
+
+	/** Maps a raster file
+	 * @param channel The open file
+	 * @param writable true if the colours can be changed
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private MappedRaster(FileChannel channel, boolean writable, int width, int height) throws IOException
+	{
+		this.channel = channel;
+		this.writable = writable;
+		this.width = width;
+		this.height = height;
+
+		long rowBytes = 4L * width;
+		if (rowBytes > MAX_CHUNK_BYTES)
+			throw new IllegalArgumentException("Rows are too wide to map: " + width);
+		rowsPerChunk = (int) Math.min(height, MAX_CHUNK_BYTES / rowBytes);
+		int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+		mappings = new MappedByteBuffer[count];
+		chunks = new IntBuffer[count];
+		FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+		for (int i = 0; i < count; i ++)
+		{
+			int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+			mappings[i] = channel.map(mode, HEADER_BYTES + i * rowsPerChunk * rowBytes, rows * rowBytes);
+			mappings[i].order(ByteOrder.LITTLE_ENDIAN);
+			chunks[i] = mappings[i].asIntBuffer();
+		}
+	}
+
+	/** Creates a new raster file (all the colours start as 0)
+	 * @param file The file to create (replaced if it exists)
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @return The mapped raster, ready to be written
+	 * @throws IOException if the file cannot be created
+	 */
+	public static MappedRaster create(File file, int width, int height) throws IOException
+	{
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Raster size must be positive: " + width + "x" + height);
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+			header.force();
+			return new MappedRaster(channel, true, width, height);
+		}
+		catch (IOException exp)
+		{
+			channel.close();
+			throw exp;
+		}
+	}
+
+	/** Maps an existing raster file
+	 * @param file The raster file
+	 * @param writable true to be able to change the colours
+	 * @return The mapped raster
+	 * @throws IOException if the file cannot be read or is not a raster file
+	 */
+	public static MappedRaster open(File file, boolean writable) throws IOException
+	{
+		if (!file.isFile())
+			throw new FileNotFoundException("No such raster file: " + file);
+		FileChannel channel = writable
+				? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			int magic, version, width, height;
+			try
+			{
+				magic = in.readInt();
+				version = in.readInt();
+				width = in.readInt();
+				height = in.readInt();
+			}
+			finally
+			{
+				in.close();
+			}
+			if (magic != MAGIC || version != VERSION)
+				throw new IOException("Not a raster file: " + file);
+			if (width <= 0 || height <= 0 || channel.size() < HEADER_BYTES + 4L * width * height)
+				throw new IOException("Raster file is damaged: " + file);
+			return new MappedRaster(channel, writable, width, height);
+		}
+		catch (IOException exp)
+		{
+			channel.close();
+			throw exp;
+		}
+	}
+
+	/** Checks if a file is a raster file (by its extension)
+	 * @param file The file
+	 * @return true if it ends with .argb
+	 */
+	public static boolean isRaster(File file)
+	{
+		return file.getName().toLowerCase().endsWith("." + EXTENSION);
+	}
+
+	/** Get the width of the raster
+	 * @return The number of pixels in a row
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/** Get the height of the raster
+	 * @return The number of rows
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/** Get the colour at a coordinate
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @return The 32 bit ARGB colour
+	 */
+	public int getColour(int x, int y)
+	{
+		checkBounds(x, y);
+		return chunks[y / rowsPerChunk].get((y % rowsPerChunk) * width + x);
+	}
+
+	/** Changes the colour at a coordinate
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @param colour The 32 bit ARGB colour
+	 */
+	public void setColour(int x, int y, int colour)
+	{
+		checkBounds(x, y);
+		chunks[y / rowsPerChunk].put((y % rowsPerChunk) * width + x, colour);
+	}
+
+	/** Copies rows out of the raster. Can be called from several threads.
+	 * @param row The first row to copy
+	 * @param pixels The array to copy the rows into
+	 * @param offset The index in pixels of the first row
+	 * @param stride The distance between the start of two rows in pixels
+	 * @param count The number of rows
+	 */
+	public void readRows(int row, int[] pixels, int offset, int stride, int count)
+	{
+		checkRows(row, count);
+		for (int r = 0; r < count; r ++)
+		{
+			int y = row + r;
+			chunks[y / rowsPerChunk].get((y % rowsPerChunk) * width, pixels, offset + r * stride, width);
+		}
+	}
+
+	/** Copies rows into the raster. Can be called from several threads for
+	 *		different rows.
+	 * @param row The first row to change
+	 * @param pixels The array with the new rows
+	 * @param offset The index in pixels of the first row
+	 * @param stride The distance between the start of two rows in pixels
+	 * @param count The number of rows
+	 */
+	public void writeRows(int row, int[] pixels, int offset, int stride, int count)
+	{
+		checkRows(row, count);
+		for (int r = 0; r < count; r ++)
+		{
+			int y = row + r;
+			chunks[y / rowsPerChunk].put((y % rowsPerChunk) * width, pixels, offset + r * stride, width);
+		}
+	}
+
+	/** Changes every pixel in place by applying each of the given point
+	 *		effects in order, in one pass (see Picture.applyPointOps)
+	 * @param ops The effects to apply, in order
+	 */
+	public void applyPointOps(final PointOp... ops)
+	{
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				int [] row = new int[width];
+				for (int y = startRow; y < endRow; y ++)
+				{
+					readRows(y, row, 0, width, 1);
+					for (PointOp op : ops)
+						op.apply(row, 0, width);
+					writeRows(y, row, 0, width, 1);
+				}
+			}
+		});
+	}
+
+	/** Copies part of the raster into a (normal, in memory) Picture, e.g. to
+	 *		look at it or to use an effect that needs the whole image
+	 * @param x The x coordinate of the left of the area
+	 * @param y The y coordinate of the top of the area
+	 * @param w The width of the area
+	 * @param h The height of the area
+	 * @return A new Picture with the colours of the area
+	 */
+	public Picture getPicture(int x, int y, int w, int h)
+	{
+		if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height)
+			throw new IllegalArgumentException("Area is not inside the raster: " + x + "," + y
+					+ " " + w + "x" + h);
+		int [] pixels = new int[w * h];
+		int [] row = w == width ? null : new int[width];
+		for (int r = 0; r < h; r ++)
+		{
+			if (row == null)
+				readRows(y + r, pixels, r * w, w, 1);
+			else
+			{
+				readRows(y + r, row, 0, width, 1);
+				System.arraycopy(row, x, pixels, r * w, w);
+			}
+		}
+		return new Picture(pixels, w, h, w, null);
+	}
+
+	/** Get a source that reads this raster from the top, a strip at a time
+	 *		(e.g. for StripProcessor). Closing it closes this raster.
+	 * @return A new source
+	 */
+	public RowSource getSource()
+	{
+		return new RowSource() {
+			private int next;
+
+			public int getWidth()
+			{
+				return width;
+			}
+
+			public int getHeight()
+			{
+				return height;
+			}
+
+			public void readRows(int[] pixels, int offset, int stride, int count)
+			{
+				MappedRaster.this.readRows(next, pixels, offset, stride, count);
+				next += count;
+			}
+
+			public void close() throws IOException
+			{
+				MappedRaster.this.close();
+			}
+		};
+	}
+
+	/** Get a sink that writes a new raster file, a strip at a time (e.g. for
+	 *		StripProcessor). The file is created when the size is known.
+	 * @param file The raster file to create
+	 * @return A new sink
+	 */
+	public static RowSink createSink(final File file)
+	{
+		return new RowSink() {
+			private MappedRaster raster;
+			private int next;
+
+			public void begin(int width, int height) throws IOException
+			{
+				raster = create(file, width, height);
+			}
+
+			public void writeRows(int[] pixels, int offset, int stride, int count)
+			{
+				raster.writeRows(next, pixels, offset, stride, count);
+				next += count;
+			}
+
+			public void close() throws IOException
+			{
+				if (raster != null)
+					raster.close();
+			}
+		};
+	}
+
+	/** Writes any changes out to the file
+	 */
+	public void flush()
+	{
+		if (writable)
+			for (MappedByteBuffer mapping : mappings)
+				mapping.force();
+	}
+
+	/** Writes any changes out and closes the file. The mapped memory itself
+	 *		is given back once this object is garbage collected (Java has no
+	 *		way to unmap a file straight away).
+	 * @throws IOException if the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		flush();
+		mappings = new MappedByteBuffer[0];
+		chunks = new IntBuffer[0];
+		channel.close();
+	}
+
+	/** Checks that a coordinate is inside the raster
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 */
+	private void checkBounds(int x, int y)
+	{
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is outside the raster");
+	}
+
+	/** Checks that a range of rows is inside the raster
+	 * @param row The first row
+	 * @param count The number of rows
+	 */
+	private void checkRows(int row, int count)
+	{
+		if (row < 0 || count < 0 || row + count > height)
+			throw new IndexOutOfBoundsException("Rows " + row + " to " + (row + count)
+					+ " are outside the raster");
+	}
+}
@@ -1,13 +1,14 @@
 
-/** Stores a grid of Pixel objects that form an image. It can also perform effects
- * such as Flip, Blur, Sharpen, Resize, and Shape Detection.
+/** Stores the colours of an image in a flat raster of 32 bit ints. It can also
+ * perform effects such as Flip, Blur, Sharpen, Resize, and Shape Detection.
  * @author  Jerry Yu 
  * @version	Oct. 23, 2012
  */
  
 import java.awt.*;
 import java.awt.image.*;
-import javax.swing.ImageIcon;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 public class Picture
@@ -18,39 +19,110 @@ public class Picture
 	final public int TRI_COLOUR  			= 0xFF72FF00;		// Green-yellow
 	final public int CIRCLE_COLOUR    		= 0xFFFF00DC;		// Pink
 	
-	private Image image;
-	private Pixel[][] picture;
+	// The image that is drawn, it shares the raster (no copy is made)
+	private BufferedImage image;
 	private Container container;
+	// The part of the image that changed since takeDirtyRegion() (or null)
+	private Rectangle dirty;
+	
+	// The image data is kept as one flat array of 32 bit ARGB colours.
+	// The colour at (x, y) is at index y * stride + x
+	private int[] pixels;
+	private int width;
+	private int height;
+	private int stride;
+	// true if the raster came from the RasterPool (nothing outside this
+	// Picture has it), so it can be given back once it is replaced
+	private boolean ownsRaster;
+	// The raster that was replaced last, kept for the next effect that needs
+	// a new one (e.g. sharpen writes into it and the two are swapped)
+	private int[] spare;
+	// Counts the changes (every updateImage), so a kept SimilarityMask
+	// is only used again if nothing changed since it was made
+	private int rasterVersion;
+	private SimilarityMask fillMask;
+	private int fillMaskVersion;
+	// Told about each span before a flood fill changes it, so it can save
+	// only those tiles (see UndoHistory.begin), or null
+	private UndoHistory undoHistory;
+
+	/** Creates a new Picture object from a file image that is not going to
+	 *		be displayed (e.g. for batch processing with no screen)
+	 * @param fileName The name of the image file
+	 * @throws IllegalArgumentException if the file cannot be loaded
+	 */
+	public Picture(String fileName)
+	{
+		this(fileName, null);
+	}
 
 	/** Creates a new Picture object from a file image
 	 * @param fileName The name of the image file
-	 * @param container The container (e.g. Frame) you will be displaying the image in
+	 * @param container The container (e.g. Frame) you will be displaying the image in,
+	 *		or null if it will not be displayed
+	 * @throws IllegalArgumentException if the file cannot be loaded
 	 */
 	public Picture(String fileName, Container container)
 	{
-		// Load up the image and get its width and height
-		image = new ImageIcon(fileName).getImage();
-		int width = image.getWidth(container);
-		int height = image.getHeight(container);
+		this(load(fileName), container);
+	}
+
+	/** Creates a new Picture object from a file image
+	 * @param file The image file
+	 * @param container The container (e.g. Frame) you will be displaying the image in,
+	 *		or null if it will not be displayed
+	 * @throws IOException if the file does not exist or is not a readable image
+	 */
+	public Picture(File file, Container container) throws IOException
+	{
+		this(PictureIO.read(file), container);
+	}
+
+	/** Creates a new Picture object from a decoded image. If the image is
+	 *		already a packed ARGB int raster, its data is used directly.
+	 * @param image The image
+	 * @param container The container (e.g. Frame) you will be displaying the image in,
+	 *		or null if it will not be displayed
+	 */
+	public Picture(BufferedImage image, Container container)
+	{
+		this(PictureIO.getRaster(image), image.getWidth(), image.getHeight(),
+				image.getWidth(), container);
+	}
+
+	/** Creates a new Picture object that uses the given raster (not a copy)
+	 * @param pixels The 32 bit ARGB colours, row by row
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param container The container (e.g. Frame) you will be displaying the image in,
+	 *		or null if it will not be displayed
+	 */
+	Picture(int[] pixels, int width, int height, int stride, Container container)
+	{
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
 		this.container = container;
+		updateImage();
+	}
 
-		// Grab the pixel values (32 bit integers) from the Image
-		int[] pixels = new int[width * height];
-		picture = new Pixel[height][width];
-		PixelGrabber pixelGrab = new PixelGrabber(image, 0, 0, width, height,
-				pixels, 0, width);
+	/** Loads an image file for the String constructors
+	 * @param fileName The name of the image file
+	 * @return The decoded image
+	 * @throws IllegalArgumentException if the file cannot be loaded
+	 */
+	private static BufferedImage load(String fileName)
+	{
 		try
 		{
-			pixelGrab.grabPixels();
+			return PictureIO.read(new File(fileName));
 		}
-		catch (InterruptedException exp)
+		catch (IOException exp)
 		{
-			System.err.println("Error grabbing pixels");
+			throw new IllegalArgumentException("Could not load image: " + exp.getMessage(), exp);
 		}
-
-		// Translate the 1D array of image data into a 2D array of Pixels
-		for (int i = 0; i < pixels.length; i++)
-			picture[i / width][i % width] = new Pixel(pixels[i]);
 	}
 
 	/** Copy constructor. Constructs a new Picture object that is a copy of
@@ -59,21 +131,105 @@ public class Picture
 	 */
 	public Picture(Picture other)
 	{
-		// Create a new 2D array that is a copy of the other Picture's array
-		picture = new Pixel[other.picture.length][other.picture[0].length];
-		for (int row = 0; row < other.picture.length; row++)
-			for (int col = 0; col < other.picture[0].length; col++)
-			{
-				picture[row][col] = new Pixel(other.picture[row][col]);
-			}
+		// Copy the other Picture's raster row by row (in case of a wider stride)
+		width = other.width;
+		height = other.height;
+		stride = width;
+		pixels = RasterPool.take(width * height);
+		ownsRaster = true;
+		for (int row = 0; row < height; row++)
+			System.arraycopy(other.pixels, row * other.stride,
+					pixels, row * stride, width);
 		// Assume new Picture has the same container
 		this.container = other.container;
 
-		// Update the image to match the 2D array of Pixels
+		// Update the image to match the raster
+		updateImage();
+	}
+
+	/** Replaces this Picture's raster (not a copy), e.g. to go back to an
+	 *		earlier size when undoing
+	 * @param pixels The 32 bit ARGB colours, row by row
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 */
+	void setRaster(int[] pixels, int width, int height, int stride)
+	{
+		replaceRaster(pixels, width, height, stride, false);
+	}
+
+	/** Replaces this Picture's raster. If the old one belonged to this
+	 *		Picture it is kept as the spare (and the old spare goes back to
+	 *		the RasterPool).
+	 * @param pixels The 32 bit ARGB colours, row by row
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param owned true if the new raster is from takeRaster()
+	 */
+	private void replaceRaster(int[] pixels, int width, int height, int stride, boolean owned)
+	{
+		// The old area needs to be drawn over too (e.g. after shrinking)
 		updateImage();
+		image = null;
+		if (ownsRaster)
+		{
+			RasterPool.give(spare);
+			spare = this.pixels;
+		}
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
+		ownsRaster = owned;
+		updateImage();
+	}
+
+	/** Sets the history that records the next flood fills (see
+	 *		UndoHistory.begin)
+	 * @param history The history, or null to stop recording
+	 */
+	void setUndoHistory(UndoHistory history)
+	{
+		undoHistory = history;
+	}
+
+	/** Gets a raster for an effect to write its result into, the spare if it
+	 *		is big enough, otherwise one from the RasterPool
+	 * @param length The number of ints needed
+	 * @return An array of at least that length (its contents are not cleared)
+	 */
+	private int[] takeRaster(int length)
+	{
+		if (spare != null && spare.length >= length)
+		{
+			int [] raster = spare;
+			spare = null;
+			return raster;
+		}
+		return RasterPool.take(length);
+	}
+
+	/** Gives this Picture's rasters back to the RasterPool, once it is no
+	 *		longer needed (e.g. after it is saved). The Picture must not be
+	 *		used afterwards.
+	 */
+	public void dispose()
+	{
+		RasterPool.give(spare);
+		if (ownsRaster)
+			RasterPool.give(pixels);
+		spare = null;
+		fillMask = null;
+		pixels = new int[0];
+		image = null;
+		width = height = stride = 0;
+		ownsRaster = false;
 	}
 
-	/** Get the Pixel object at a coordinate
+	/** Get the Pixel object at a coordinate. The Pixel is a view into this
+	 *		Picture's raster, so changing its colour changes this Picture.
 	 * @param x The x coordinate of the Pixel
 	 * @param y The y coordinate of the Pixel
 	 * @return The Pixel object at the given coordinate if it is within bounds,
@@ -81,11 +237,11 @@ public class Picture
 	 */
 	public Pixel getPixel(int x, int y)
 	{
-		if (x < 0 || x >= picture[0].length ||
-			y < 0 || y >= picture.length)
+		if (x < 0 || x >= width ||
+			y < 0 || y >= height)
 			return null;
 		else
-			return picture[y][x];
+			return new Pixel(pixels, y * stride + x);
 	}
 
 	/** Get the number of pixels wide of this image
@@ -93,7 +249,7 @@ public class Picture
 	 */
 	public int getWidth()
 	{
-		return picture[0].length;
+		return width;
 	}
 
 	/** Get the number of pixels high of this image
@@ -101,7 +257,24 @@ public class Picture
 	 */
 	public int getHeight()
 	{
-		return picture.length;
+		return height;
+	}
+	
+	/** Get the raster that holds this Picture's colours (not a copy)
+	 * @return The 32 bit ARGB colours, the colour at (x, y) is at
+	 *		index y * getStride() + x
+	 */
+	int[] getRaster()
+	{
+		return pixels;
+	}
+	
+	/** Get the distance between the start of two rows in the raster
+	 * @return The stride of the raster
+	 */
+	int getStride()
+	{
+		return stride;
 	}
 
 	
@@ -123,46 +296,149 @@ public class Picture
 		return true;
 	}
 	
+    /** Same as above, but compares two 32 bit colours without unpacking them
+	 * 		into arrays
+     * @param c1 A 32 bit int with the Alpha, Red, Green and Blue values
+     * @param c2 A 32 bit int with the Alpha, Red, Green and Blue values
+     * @return true if the maximum difference in all values of both colours is less
+			than a certain value (10), false otherwise.
+     */
+	public static boolean isSimilarcolour (int c1, int c2)
+	{
+		return Math.abs(Pixel.alpha(c1) - Pixel.alpha(c2)) < 10 &&
+			Math.abs(Pixel.red(c1) - Pixel.red(c2)) < 10 &&
+			Math.abs(Pixel.green(c1) - Pixel.green(c2)) < 10 &&
+			Math.abs(Pixel.blue(c1) - Pixel.blue(c2)) < 10;
+	}
+	
 	/** Fills all surrounding pixels of similar colours as the Pixel at
-			the given coordinate
+			the given coordinate (every colour within 10 of it in Alpha, Red,
+			Green and Blue, see isSimilarcolour).
 	 * @param x The x coordinate of the pixel to start
 	 * @param y The y coordinate of the pixel to start
 	 * @param colour The colour to fill in, represented by a 32 bit int.
 	 */
 	public void floodFill(int x, int y, int fillColour)
 	{
+		floodFill(x, y, fillColour, SimilarityMask.DEFAULT_TOLERANCE, SimilarityMask.Metric.MAX_CHANNEL);
+	}
+	
+	/** Fills all surrounding pixels of similar colours as the Pixel at
+			the given coordinate. Which pixels are similar is worked out
+			64 at a time as the fill reaches them (see SimilarityMask),
+			and the fill works one horizontal run (span) of pixels at a
+			time: a span is filled all at once, then the start of every run
+			of similar pixels just above and below it is pushed onto a stack
+			to be filled later. The mask is kept, so another fill of the same
+			colour (e.g. clicking on the next shape in the same background)
+			does not sweep the image again unless it changed in between.
+	 * @param x The x coordinate of the pixel to start
+	 * @param y The y coordinate of the pixel to start
+	 * @param fillColour The colour to fill in, represented by a 32 bit int.
+	 * @param tolerance The difference a colour must be under to be filled
+	 *		(SimilarityMask.MIN_TOLERANCE to SimilarityMask.MAX_TOLERANCE)
+	 * @param metric How the difference between two colours is measured
+	 * @throws IllegalArgumentException if the tolerance is out of range
+	 */
+	public void floodFill(int x, int y, int fillColour, int tolerance, SimilarityMask.Metric metric)
+	{
+		SimilarityMask.checkTolerance(tolerance);
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return;							// Clicked outside the image
+		PictureMetrics.Span span = PictureMetrics.start("floodFill");
+		
 		// Remember this colour
-		int [] colour = picture[y][x].getArrayFromPixels();
-		// Store points previously visited
-		HashSet <Point> visited = new HashSet <Point> ();
-		// Store points to visit next
-		Queue <Point> q = new LinkedList <Point> ();
-		// Begin with current point
-		q.add(new Point(x, y));
+		int colour = pixels[y * stride + x];
+		// The bits of the pixels that still need to be filled
+		SimilarityMask mask = getFillMask(colour, tolerance, metric);
+		// Store the start of the spans to fill next (as y * width + x)
+		IntStack stack = new IntStack(64);
+		stack.push(y * width + x);
+		// The bounding box of the filled pixels (to only redraw that area)
+		int minX = x, maxX = x, minY = y, maxY = y;
+		long count = 0;
 		
-		while (!q.isEmpty())
+		while (!stack.isEmpty())
 		{
-			Point coord = q.remove();				// Get top element and remove it too
-			if (visited.add(coord))					// Add and make sure it wasnt visited
-			{
-				// Similar colours?
-				if (isSimilarcolour(colour, picture[coord.y][coord.x].getArrayFromPixels()))	
-				{
-					// Fill
-					picture[coord.y][coord.x].setColour(fillColour);
-					
-					// Add surrounding pixels (if possible)
-					if (coord.x > 0)
-						q.add(new Point (coord.x-1, coord.y));
-					if (coord.y > 0)
-						q.add(new Point (coord.x, coord.y-1));
-					if (coord.x < getWidth()-1)
-						q.add(new Point (coord.x+1, coord.y));
-					if (coord.y < getHeight()-1)
-						q.add(new Point (coord.x, coord.y+1));
-				}
-			}	// Check not visited
-		}	// While loop
+			int start = stack.pop();
+			int row = start / width;
+			int col = start % width;
+			if (!mask.get(col, row))
+				continue;						// Already done by another span
+			
+			// Find how far the span goes to the left and right
+			int left = mask.getRunLeft(col, row);
+			int right = mask.getRunRight(col, row);
+			
+			// Fill the span
+			if (undoHistory != null)
+				undoHistory.save(this, left, row, right - left + 1, 1);
+			for (int i = left; i <= right; i ++)
+				pixels[row * stride + i] = fillColour;
+			mask.clearRun(row, left, right);
+			count += right - left + 1;
+			minX = Math.min(minX, left);
+			maxX = Math.max(maxX, right);
+			minY = Math.min(minY, row);
+			maxY = Math.max(maxY, row);
+			
+			// Add the start of each run of similar pixels above and below
+			if (row > 0)
+				pushRuns(stack, mask, left, right, row - 1);
+			if (row < height - 1)
+				pushRuns(stack, mask, left, right, row + 1);
+		}
+		
+		updateImage(minX, minY, maxX - minX + 1, maxY - minY + 1);
+		// The cleared bits match the filled pixels, unless the fill colour
+		// is itself similar (then those pixels would need their bits back)
+		if (metric.isSimilar(fillColour, colour, tolerance))
+			fillMask = null;
+		else
+			fillMaskVersion = rasterVersion;
+		PictureMetrics.end(span, count);
+	}
+	
+	/** Gets the similarity mask for a fill, the one kept from the last fill
+	 *		if it was for the same colour and the picture has not changed since
+	 * @param colour The colour being replaced
+	 * @param tolerance The difference a colour must be under to be filled
+	 * @param metric How the difference between two colours is measured
+	 * @return The mask
+	 */
+	private SimilarityMask getFillMask(int colour, int tolerance, SimilarityMask.Metric metric)
+	{
+		if (fillMask != null && fillMaskVersion == rasterVersion
+				&& fillMask.getWidth() == width && fillMask.getHeight() == height
+				&& fillMask.matches(colour, tolerance, metric))
+			return fillMask;
+		if (fillMask == null || fillMask.getWidth() != width || fillMask.getHeight() != height)
+			fillMask = new SimilarityMask(width, height);
+		fillMask.compute(pixels, stride, colour, tolerance, metric);
+		return fillMask;
+	}
+	
+	/** Pushes the start of every run of fillable pixels in part of a row
+	 * @param stack The stack of spans to fill
+	 * @param mask The bits of the pixels that still need to be filled
+	 * @param left The first x coordinate to check
+	 * @param right The last x coordinate to check
+	 * @param row The y coordinate of the row
+	 */
+	private void pushRuns(IntStack stack, SimilarityMask mask, int left, int right, int row)
+	{
+		for (int i = mask.nextSet(left, row, right); i >= 0; i = mask.nextSet(mask.getRunRight(i, row) + 1, row, right))
+			stack.push(row * width + i);		// Start of a new run
+	}
+
+	/** Checks if the bit for a pixel is set
+	 * @param bits One bit per pixel
+	 * @param index The pixel's index (y * width + x)
+	 * @return true if the bit is set
+	 */
+	private static boolean isFilled(long [] bits, int index)
+	{
+		return (bits[index >>> 6] & (1L << index)) != 0;
 	}
 
 	/** The default flood fill (called from GUI). Uses the helper method above.
@@ -180,17 +456,35 @@ public class Picture
 	 */
 	public void flip()
 	{
-		for (int row = 0 ; row < picture.length; row ++)
-		{
-			for (int col = 0 ; col < picture[0].length / 2; col ++)	// Only go halfway
+		PictureMetrics.Span span = PictureMetrics.start("flip");
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
 			{
-				Pixel p = picture[row][col];	// Store temporarily
-				picture[row][col] = picture[row][picture[row].length -1 - col];
-				picture[row][picture[row].length -1 - col] = p;
+				flipRows(startRow, endRow);
 			}
-		}
+		});
 		
 		updateImage();
+		PictureMetrics.end(span, (long) width * height);
+	}
+	
+	/** Does the work of flip() for one band of rows
+	 * @param startRow The first row to flip
+	 * @param endRow One past the last row to flip
+	 */
+	private void flipRows(int startRow, int endRow)
+	{
+		for (int row = startRow ; row < endRow; row ++)
+		{
+			int left = row * stride;
+			int right = left + width - 1;
+			for (int col = 0 ; col < width / 2; col ++)	// Only go halfway
+			{
+				int p = pixels[left + col];		// Store temporarily
+				pixels[left + col] = pixels[right - col];
+				pixels[right - col] = p;
+			}
+		}
 	}
 
 	/** Change all pixels such that the new value of each RGB value is
@@ -198,9 +492,26 @@ public class Picture
 	 */
 	public void negative()
 	{
-		for (int row = 0 ; row < picture.length; row ++)
-			for (int col = 0 ; col < picture[0].length; col ++)
-				picture[row][col].negative();		// Do calculations in Pixel class
+		PictureMetrics.Span span = PictureMetrics.start("negative");
+		applyPointOps(PointOp.NEGATIVE);		// Do calculations in Pixel class
+		PictureMetrics.end(span, (long) width * height);
+	}
+	
+	/** Changes every pixel by applying each of the given point effects in
+	 *		order. All of the effects are done in one pass over the image.
+	 * @param ops The effects to apply, in order
+	 */
+	public void applyPointOps(final PointOp... ops)
+	{
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				// Each effect does a whole row at a time (while it is in the cache)
+				for (int row = startRow ; row < endRow; row ++)
+					for (PointOp op : ops)
+						op.apply(pixels, row * stride, row * stride + width);
+			}
+		});
 		
 		updateImage();
 	}
@@ -215,13 +526,22 @@ public class Picture
 	public void fillShape (int x, int y)
 	{
 		// Remember this colour
-		int colour = picture[y][x].getColour();
-		// Store points with similar colour
-		HashSet <Point> visited = new HashSet <Point> ();
-		// Store points to visit next
-		Queue <Point> q = new LinkedList <Point> ();
-		// Begin with current point
-		q.add(new Point(x, y));
+		int colour = pixels[y * stride + x];
+		// One bit per pixel, set once the pixel is known to be in the shape
+		long [] visited = new long [(width * height + 63) / 64];
+		// Store points to visit next (as y * width + x)
+		IntStack stack = new IntStack(64);
+		stack.push(y * width + x);
+		
+		// Maintain an array that holds the top and bottom most y coord at given x
+		// (if exists). Similar, it keeps track of the left/right most x coord
+		// at given y coord
+		int [] top = new int [width];
+		int [] bottom = new int [width];
+		int [] left = new int [height];
+		int [] right = new int [height];
+		Arrays.fill(top, height - 1);
+		Arrays.fill(left, width - 1);
 		
 		// Remember the left/right/top/bottom most position (init with default values)
 		int startX = 1000000;
@@ -229,132 +549,177 @@ public class Picture
 		int startY = 1000000;
 		int endY = -1;
 		
-		// Maintain an array that holds the top and bottom most y coord at given x
-		// (if exists). Similar, it keeps track of the left/right most x coord
-		// at given y coord
-		Point [][]hStats = new  Point [getWidth()][2];
-		Point [][]vStats = new  Point [getHeight()][2];
-		
-		// Fill with default values
-		for (int i = 0; i < hStats.length; i ++)
-		{
-			hStats[i][0] = new Point(i, getHeight()-1);
-			hStats[i][1] = new Point(i, 0);
-		}
-		for (int i = 0; i < vStats.length; i ++)
+		// Begin searching
+		while (!stack.isEmpty())
 		{
-			vStats[i][0] = new Point(getWidth()-1, i);
-			vStats[i][1] = new Point(0, i);
+			int index = stack.pop();
+			int px = index % width;
+			int py = index / width;
+			// Make sure it wasnt visited
+			if (isFilled(visited, index) || pixels[py * stride + px] != colour)
+				continue;
+			visited[index >>> 6] |= 1L << index;
+			
+			// Check if this coordinate is higher/lower/left/right of stored value
+			top[px] = Math.min(top[px], py);
+			bottom[px] = Math.max(bottom[px], py);
+			left[py] = Math.min(left[py], px);
+			right[py] = Math.max(right[py], px);
+			
+			// Check if this coordinate is higher/lower/left/right of "extremes"
+			startX = Math.min(startX, px);
+			endX = Math.max(endX, px);
+			startY = Math.min(startY, py);
+			endY = Math.max(endY, py);
+			
+			// Add surrounding pixels to visit
+			if (px > 0)
+				stack.push(index - 1);
+			if (py > 0)
+				stack.push(index - width);
+			if (px < width-1)
+				stack.push(index + 1);
+			if (py < height-1)
+				stack.push(index + width);
 		}
 		
-		// Begin searching
-		while (!q.isEmpty())
-		{
-			Point coord = q.remove();				// Get top element and remove it too
-			// Add and make sure it wasnt visited
-			if (!visited.contains(coord) && picture[coord.y][coord.x].getColour() == colour)	
-			{
-				visited.add(coord);
-				
-				// Check if this coordinate is higher/lower/left/right of stored value
-				if (coord.y < hStats[coord.x][0].y)
-					hStats[coord.x][0] = coord;
-				if (coord.y > hStats[coord.x][1].y)
-					hStats[coord.x][1] = coord;
-				if (coord.x < vStats[coord.y][0].x)
-					vStats[coord.y][0] = coord;
-				if (coord.x > vStats[coord.y][1].x)
-					vStats[coord.y][1] = coord;
-				
-				// Check if this coordinate is higher/lower/left/right of "extremes"
-				if (coord.x < startX)
-					startX = coord.x;
-				if (coord.x > endX)
-					endX = coord.x;
-				if (coord.y < startY)
-					startY = coord.y;
-				if (coord.y > endY)
-					endY = coord.y;
-					
-				
-				// Add surrounding pixels to visit
-				if (coord.x > 0)
-					q.add(new Point (coord.x-1, coord.y));
-				if (coord.y > 0)
-					q.add(new Point (coord.x, coord.y-1));
-				if (coord.x < getWidth()-1)
-					q.add(new Point (coord.x+1, coord.y));
-				if (coord.y < getHeight()-1)
-					q.add(new Point (coord.x, coord.y+1));
-			}	// Check not visited
-		}	// While loop
+		int fillColour = classifyShape(top, bottom, startX, endX - startX,
+				left, right, startY, endY - startY);
+		
+		// Fill all the pixels that were visited previously with the shape colour
+		for (int py = startY; py <= endY; py ++)
+			for (int px = left[py]; px <= right[py]; px ++)
+				if (isFilled(visited, py * width + px))
+					pixels[py * stride + px] = fillColour;
+	}
+	
+	/** Determines the type of a shape from the outline of its columns and rows
+	 * @param top The top most y of each column
+	 * @param bottom The bottom most y of each column
+	 * @param firstColumn The index in top/bottom of the left most column
+	 * @param columns The number of columns to compare (one less than the width)
+	 * @param left The left most x of each row
+	 * @param right The right most x of each row
+	 * @param firstRow The index in left/right of the top row
+	 * @param rows The number of rows to compare (one less than the height)
+	 * @return The colour to fill the shape with
+	 */
+	private int classifyShape (int [] top, int [] bottom, int firstColumn, int columns,
+			int [] left, int [] right, int firstRow, int rows)
+	{
+		// Max diff, occurences of the max diff, number of parellel lines
+		int [] columnStats = new int [3];
+		int [] rowStats = new int [3];
+		profileLines(top, bottom, firstColumn, columns, columnStats);
+		profileLines(left, right, firstRow, rows, rowStats);
+		int maxYDiff = columnStats[0];
+		int yOcc = columnStats[1];
+		int yPars = columnStats[2];
+		int maxXDiff = rowStats[0];
+		int xOcc = rowStats[1];
+		int xPars = rowStats[2];
 		
-		int maxYDiff = 0;		// Max y diffs
-		int yOcc = 0;			// Max occurences of this y diff
-		int yPars = 0;			// Number of vertical parellel lines
-		for (int i = startX; i < endX; i ++)
+		// Number of parellel lines compared to the maximum combined "atlitude"
+		double percentage = 50.0 * (yPars + xPars) / (maxYDiff * maxXDiff);
+		
+		int fillColour = CIRCLE_COLOUR; // Default circle
+		if (percentage < 10 && xOcc < 10 && yOcc < 10)
+			fillColour = TRI_COLOUR;	// Few occurences of parellel lines
+		else if (percentage < 30 || xOcc >= 50 || yOcc >= 50)
+			fillColour = RECT_COLOUR;	// Rectangles have more occurences of max diff
+		return fillColour;
+	}
+	
+	/** Profiles one direction of a shape's outline. For columns, the first
+	 *		and second values are the top and bottom most y of each column
+	 *		(for rows, the left and right most x of each row).
+	 *		Line i and line j (j = i + 3, i + 6, ...) are parellel (see
+	 *		isParallel) when |first[j] - first[i]| == |second[j] - second[i]|,
+	 *		which is when they have the same second - first (equal lengths) or
+	 *		the same second + first (mirrored). Both happen when both values
+	 *		are the same. So instead of comparing every pair, the lines are
+	 *		counted in histograms of those keys and the pairs are counted from
+	 *		the histograms, which is linear in the number of lines.
+	 * @param first The first value of each line
+	 * @param second The second value of each line
+	 * @param start The index of the first line
+	 * @param count The number of lines
+	 * @param stats Set to the max difference (halved), the number of lines
+	 *		with that difference and the number of parellel line pairs
+	 */
+	private void profileLines (int [] first, int [] second, int start, int count, int [] stats)
+	{
+		int maxDiff = 0;		// Max diffs
+		int occ = 0;			// Max occurences of this diff
+		int minValue = Integer.MAX_VALUE;
+		int maxValue = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i ++)
 		{
-			// Check difference in top/bottom y values at given x
-			int diff = (hStats[i][1].y - hStats[i][0].y) / 2;
-			if (diff > maxYDiff)
+			// Check difference in first/second values of this line
+			int diff = (second[start + i] - first[start + i]) / 2;
+			if (diff > maxDiff)
 			{
-				maxYDiff = diff;	// Found a longer difference
-				yOcc = 1;
+				maxDiff = diff;		// Found a longer difference
+				occ = 1;
 			}
-			else if (diff == maxYDiff)
-				yOcc ++;			// Same difference, increment
+			else if (diff == maxDiff)
+				occ ++;				// Same difference, increment
 			
-			// Check for parellel lines
-			Point A1 = hStats[i][0];
-			Point B1 = hStats[i][1];
-			for (int j = i + 3; j < endX; j += 3)
-			{
-				Point A2 = hStats[j][0];
-				Point B2 = hStats[j][1];
-				
-				if (isParallel (A1, A2, B1, B2))
-					yPars++;		// Found another parellel line
-			}
+			// Range of the values, to size the histograms
+			minValue = Math.min(minValue, Math.min(first[start + i], second[start + i]));
+			maxValue = Math.max(maxValue, Math.max(first[start + i], second[start + i]));
 		}
 		
-		int maxXDiff = 0;		// Max y diffs
-		int xOcc = 0;			// Max occurences of this y diff
-		int xPars = 0;			// Number of horizontal parellel lines
-		for (int i = startY; i < endY; i ++)	// Same loop as above except looping down
+		stats[0] = maxDiff;
+		stats[1] = occ;
+		stats[2] = 0;
+		if (count < 4)
+			return;					// No lines 3 apart
+		
+		// Histograms of second - first and of second + first (shifted to start at 0)
+		int range = maxValue - minValue;
+		int [] lengths = new int [2 * range + 1];
+		int [] mirrors = new int [2 * range + 1];
+		long [] both = new long [(count + 2) / 3];
+		
+		// Only lines a multiple of 3 apart are compared
+		int pars = 0;			// Number of parellel lines
+		for (int r = 0; r < 3; r ++)
 		{
-			int diff = (vStats[i][1].x - vStats[i][0].x) / 2;
-			if (diff > maxXDiff)
+			int n = 0;
+			for (int i = r; i < count; i += 3)
+			{
+				int a = first[start + i] - minValue;
+				int b = second[start + i] - minValue;
+				pars += lengths[b - a + range]++;		// Pairs with the same length
+				pars += mirrors[a + b]++;				// Pairs that are mirrored
+				both[n++] = (long) a << 32 | b;
+			}
+			
+			// Pairs with both the same were counted twice
+			Arrays.sort(both, 0, n);
+			int run = 1;
+			for (int k = 1; k <= n; k ++)
 			{
-				maxXDiff = diff;
-				xOcc = 1;
+				if (k < n && both[k] == both[k - 1])
+					run ++;
+				else
+				{
+					pars -= run * (run - 1) / 2;
+					run = 1;
+				}
 			}
-			else if (diff == maxXDiff)
-				xOcc ++;
-				
-			Point A1 = vStats[i][0];
-			Point B1 = vStats[i][1];
-			for (int j = i + 3; j < endY; j += 3)
+			
+			// Empty the histograms for the next set of lines
+			for (int i = r; i < count; i += 3)
 			{
-				Point A2 = vStats[j][0];
-				Point B2 = vStats[j][1];
-				
-				if (isParallel (A1, A2, B1, B2))
-					xPars++;
+				int a = first[start + i] - minValue;
+				int b = second[start + i] - minValue;
+				lengths[b - a + range] = 0;
+				mirrors[a + b] = 0;
 			}
 		}
-		
-		// Number of parellel lines compared to the maximum combined "atlitude"
-		double percentage = 50.0 * (yPars + xPars) / (maxYDiff * maxXDiff);
-		
-		int fillColour = CIRCLE_COLOUR; // Default circle
-		if (percentage < 10 && xOcc < 10 && yOcc < 10)
-			fillColour = TRI_COLOUR;	// Few occurences of parellel lines
-		else if (percentage < 30 || xOcc >= 50 || yOcc >= 50)
-			fillColour = RECT_COLOUR;	// Rectangles have more occurences of max diff
-		
-		// Fill all the pixels that were visited previously with the shape colour
-		for (Point p : visited)
-			picture[p.y][p.x].setColour(fillColour);
+		stats[2] = pars;
 	}
 	
 	/** Determines if two lines, each connected by 2 points, are parellel
@@ -373,7 +738,9 @@ public class Picture
 	}
 	
     /** Called by the GUI. This method scanns the image and fills in all
-	 * 		rectangles, triangles, and circles.
+	 * 		rectangles, triangles, and circles. All the shapes are found at
+	 *		once by a ComponentLabeller, which also gives the outline of each
+	 *		shape, so the time taken only depends on the size of the image.
      * Preconditions:
 	 *		1) The image only contains rectangles (including trapezoids),
 	 *		triangles, and circles.
@@ -382,103 +749,98 @@ public class Picture
      */
 	public void shapes ()
 	{
-		int backColour = picture[0][0].getColour();
+		PictureMetrics.Span span = PictureMetrics.start("shapes");
+		// Background coloured pixels and already filled shapes are left alone
+		int [] ignored = {pixels[0], RECT_COLOUR, TRI_COLOUR, CIRCLE_COLOUR};
+		ComponentLabeller shapes = new ComponentLabeller(pixels, width, height, stride, ignored);
 		
-		for (int y = 0; y < getHeight()-1; y ++)
+		int [] fillColours = new int [shapes.getCount()];
+		for (int shape = 0; shape < shapes.getCount(); shape ++)
 		{
-			for (int x = 0; x < getWidth()-1; x ++)
+			// Only shapes with a pixel above the last row and left of the last
+			// column are filled (the scan used to stop there)
+			int rowOffset = shapes.getRowOffset(shape);
+			int minY = shapes.getMinY(shape);
+			boolean inScan = false;
+			for (int y = minY; y <= Math.min(shapes.getMaxY(shape), height - 2) && !inScan; y ++)
+				inScan = shapes.getRowLeft()[rowOffset + y - minY] < width - 1;
+			if (!inScan)
+				continue;
+			
+			// Use helper method to determine the shape
+			fillColours[shape] = classifyShape(
+					shapes.getColumnTop(), shapes.getColumnBottom(), shapes.getColumnOffset(shape),
+					shapes.getMaxX(shape) - shapes.getMinX(shape),
+					shapes.getRowLeft(), shapes.getRowRight(), rowOffset,
+					shapes.getMaxY(shape) - minY);
+		}
+		
+		// Fill all the shapes with their colours (and count their pixels
+		// if they are being measured)
+		int [] labels = shapes.getLabels();
+		int [] sizes = span != null ? new int [shapes.getCount()] : null;
+		for (int y = 0; y < height; y ++)
+			for (int x = 0; x < width; x ++)
 			{
-				// Continue if found a background coloured pixel or already filled
-				if (picture[y][x].getColour() == backColour || 
-					picture[y][x].getColour() == RECT_COLOUR ||
-					picture[y][x].getColour() == TRI_COLOUR ||
-					picture[y][x].getColour() == CIRCLE_COLOUR)
-					continue;
-				
-				// Use helper method to determine and fill shape
-				fillShape(x, y);
+				int shape = labels[y * width + x];
+				if (shape >= 0 && fillColours[shape] != 0)
+					pixels[y * stride + x] = fillColours[shape];
+				if (sizes != null && shape >= 0)
+					sizes[shape] ++;
 			}
-		}
 		
 		updateImage();
-	}
-	
-	/** Get a new 2d array of Pixels that is transformed
-	 * @return A new 2d array of Pixels that is transformed that is similar to
-	 *		flipping horizontally, then rotating counter-clockwise by 90 degrees
-	 *		top left & bottom right remains
-	 *		top right swaps with bottom left
-	 */
-	public Pixel [][] getTransformed(Pixel [][] old)
-	{
-		Pixel [][] flipped = new Pixel[old[0].length][old.length];
-		for (int y = 0; y < flipped.length; y ++)
-			for (int x = 0; x < flipped[y].length; x ++)
-				flipped[y][x] = old[x][y];
-		
-		return flipped;
+		if (sizes != null)
+			for (int size : sizes)
+				PictureMetrics.shapeFound(size);
+		PictureMetrics.end(span, (long) width * height);
 	}
 	
 	/** Modifies all the pixel values so that each pixel is the average of all
-	 *		surrounding pixels
-	 * @param r The rumber of pixels in each direction to include in the average
+	 *		surrounding pixels in the same row
+	 * @param r The number of pixels in the average (an even number is
+	 *		changed to the next odd number so the image does not shift)
+	 * @throws IllegalArgumentException if r is negative
 	 */
 	public void blurHorizontal (int r) 
 	{
-		if (r % 2 == 0)
-			r++;		// Even radius shifts the image, change to an odd number.
-			
-		// Horizontal pass
-		for (int y = 0; y < picture.length; y ++)
-		{
-			// Use a LinkedList to easily get the trailing leftmost array of colours
-			LinkedList <Object> q = new LinkedList <Object> ();
-			int []total = new int [4];
-			
-			// Add the leftmost array of colours
-			int [] arr = picture[y][0].getArrayFromPixels();
-			Pixel.addPixelArrays(total, arr, 1);
-			q.add(arr);
-			
-			for (int x = r/2; x < picture[y].length-1; x ++)
-			{
-				// Add the colour array at this x index
-				arr = picture[y][x].getArrayFromPixels();
-				Pixel.addPixelArrays(total, arr, 1);
-				q.add(arr);
-				
-				// Set the average colour of the middle pixel (depending on radius)
-				picture[y][x-r/2].setColour(Pixel.getAverageValue(total, q.size()));
-				
-				if (q.size() >= r)
-					// Remove the trailing leftmost colour if needed
-					Pixel.addPixelArrays(total, (int[])q.remove(), -1);
-			}
-			
-			// Blur the rightmost pixel
-			// (do not need to add any pixels, so just take average)
-			picture[y][getWidth()-1].setColour(Pixel.getAverageValue(total, q.size()));
-		}
+		if (r < 0)
+			throw new IllegalArgumentException("Blur size must not be negative: " + r);
+		SeparableFilter.boxHorizontal(pixels, width, height, stride, r / 2);
 	}
 	
-	/** This method is called by the GUI. It then calls the above helper method
-	 *		to blur horizontally, transform the image, blur and finally transform again.
-	 * 		The extra transformations do not make a huge difference in time required,
-	 *		and reduces duplicate code.
+	/** This method is called by the GUI. Blurs with a 3x3 box.
 	 */
 	public void blur ()
 	{
-		int radius = 3;
-		
-		// Blur (the horizontal) and transform
-		blurHorizontal (radius);
-		picture = getTransformed(picture);
-		
-		// Blur (the vertical) and transform back
-		blurHorizontal (radius);
-		picture = getTransformed(picture);
-		
+		blur(1);
+	}
+	
+	/** Blurs the image so that each pixel is the average of the square of
+	 *		pixels around it. The horizontal and vertical passes are both done
+	 *		in place with running sums, so any radius takes the same time.
+	 * @param radius The number of pixels in each direction to include
+	 * @throws IllegalArgumentException if the radius is negative
+	 */
+	public void blur (int radius)
+	{
+		SeparableFilter.checkRadius(radius);
+		PictureMetrics.Span span = PictureMetrics.start("blur");
+		SeparableFilter.boxBlur(pixels, width, height, stride, radius);
 		updateImage();
+		PictureMetrics.end(span, (long) width * height);
+	}
+	
+	/** Blurs the image with (an approximation of) a Gaussian, done as
+	 *		3 box blurs in a row
+	 * @param sigma The standard deviation of the Gaussian (in pixels)
+	 */
+	public void gaussianBlur (double sigma)
+	{
+		PictureMetrics.Span span = PictureMetrics.start("gaussianBlur");
+		SeparableFilter.gaussianBlur(pixels, width, height, stride, sigma);
+		updateImage();
+		PictureMetrics.end(span, (long) width * height);
 	}
 	
 	/** Sharpens the image by going through all Pixels and calculating a new
@@ -486,50 +848,41 @@ public class Picture
 	 */
 	public void sharpen()
 	{
-		Pixel [][] newPic = new Pixel[getHeight()][getWidth()];
-		int [][] matrix = { {-1, -1, -1, -1, -1},		// Weightings for
-							{-1,  2,  2,  2, -1},		// neighbouring Pixels
-							{-1,  2, 16,  2, -1},		// (5x5 grid)
-							{-1,  2,  2,  2, -1},
-							{-1, -1, -1, -1, -1} };
-							
-		for (int y = 0; y < picture.length; y ++)
-		{
-			for (int x = 0; x < picture[y].length; x ++)
-			{
-				// Get weighted average of neighbouring Pixels
-				int []total = new int[4];
-				int totalWeight = 0;
-				
-				for (int dy = -2; dy <= 2; dy ++)
-				{
-					if (y + dy < 0 || y + dy >= getHeight())
-						continue;		// Continue if out of bounds
-						
-					for (int dx = -2; dx <= 2; dx ++)
-					{
-						if (x + dx < 0 || x + dx >= getWidth())
-							continue;	// Continue if out of bounds
-						
-						// Get the weighting for this Pixel
-						int weight = matrix[dy+2][dx+2];
-						// Add the weighted value to the total
-						Pixel.addPixelArrays(total,
-							picture[y+dy][x+dx].getArrayFromPixels(),
-							weight);
-						// Also add the total weightings to the total
-						totalWeight += weight;
-					}
-				}
-				
-				// Create a new Pixel with the calculated weighted average
-				newPic[y][x] = new Pixel(Pixel.getAverageValue(total, totalWeight));
-			}
-		}
+		PictureMetrics.Span span = PictureMetrics.start("sharpen");
+		convolve(ConvolutionKernel.SHARPEN);
+		PictureMetrics.end(span, (long) width * height);
+	}
+	
+	/** Makes the image look raised (flat areas become grey)
+	 */
+	public void emboss()
+	{
+		PictureMetrics.Span span = PictureMetrics.start("emboss");
+		convolve(ConvolutionKernel.EMBOSS);
+		PictureMetrics.end(span, (long) width * height);
+	}
+	
+	/** Highlights the edges in the image (flat areas become black)
+	 */
+	public void edgeDetect()
+	{
+		PictureMetrics.Span span = PictureMetrics.start("edges");
+		convolve(ConvolutionKernel.EDGE_DETECT);
+		PictureMetrics.end(span, (long) width * height);
+	}
+	
+	/** Calculates a new colour for every pixel by weighting the pixels
+	 *		around it with the given ConvolutionKernel
+	 * @param kernel The weights to use
+	 */
+	public void convolve(ConvolutionKernel kernel)
+	{
+		int [] newPic = takeRaster(width * height);
+		kernel.convolve(pixels, width, height, stride, newPic, width);
 		
-		// Assign the picture reference to the new array and update image
-		picture = newPic;
-		updateImage();
+		// Switch to the new array (this also updates the image), the old
+		// one is kept for the next time
+		replaceRaster(newPic, width, height, width, true);
 	}
 
 	/** Changes each pixel so that the new RGB values is the weighted average
@@ -537,11 +890,9 @@ public class Picture
 	 */
 	public void blackAndWhite()
 	{
-		for (int y = 0; y < picture.length; y ++)
-			for (int x = 0; x < picture[0].length; x ++)
-				picture[y][x].blackWhite();		// Do calculations in Pixel class
-		
-		updateImage();
+		PictureMetrics.Span span = PictureMetrics.start("bw");
+		applyPointOps(PointOp.BLACK_AND_WHITE);	// Do calculations in Pixel class
+		PictureMetrics.end(span, (long) width * height);
 	}
 
 	/** Creates a new picture with a size that is half as wide and tall as
@@ -552,53 +903,255 @@ public class Picture
 		if (getHeight() <= 1 || getWidth() <= 1)
 			return;			// Prevents exceptions if trying to shrink small images
 		
+		// Switch to the new array (this also updates the image)
+		PictureMetrics.Span span = PictureMetrics.start("shrink");
+		long oldPixels = (long) width * height;
+		int [] newPic = shrinkRaster(takeRaster((width / 2) * (height / 2)));
+		replaceRaster(newPic, width / 2, height / 2, width / 2, true);
+		PictureMetrics.end(span, oldPixels);
+	}
+
+	/** Creates a new picture that is half as wide and tall, the same as
+	 *		shrink() but this picture is not changed (e.g. for ImagePyramid)
+	 * @return The new Picture, or a copy if this picture is too small to shrink
+	 */
+	public Picture getShrunk()
+	{
+		if (getHeight() <= 1 || getWidth() <= 1)
+			return new Picture(this);
+		Picture shrunk = new Picture(shrinkRaster(RasterPool.take((width / 2) * (height / 2))),
+				width / 2, height / 2, width / 2, container);
+		shrunk.ownsRaster = true;
+		return shrunk;
+	}
+
+	/** Averages each 2x2 block of this picture into a raster
+	 * @param newPic The raster to write to, at least (width / 2) * (height / 2)
+	 * @return newPic
+	 */
+	private int[] shrinkRaster(final int[] newPic)
+	{
 		// Assume new Image size is always half
-		Pixel [][] newPic = new Pixel [getHeight()/2][getWidth()/2];
-		for (int y = 0; y < newPic.length; y ++)
+		final int newWidth = width / 2;
+		int newHeight = height / 2;
+		RasterScheduler.forEachBand(newHeight, newWidth, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				shrinkRows(newPic, newWidth, startRow, endRow);
+			}
+		});
+		return newPic;
+	}
+	
+	/** Does the work of shrink() for one band of rows of the new raster
+	 * @param newPic The raster to store the averaged colours in
+	 * @param newWidth The width of the new raster
+	 * @param startRow The first new row to calculate
+	 * @param endRow One past the last new row to calculate
+	 */
+	private void shrinkRows(int [] newPic, int newWidth, int startRow, int endRow)
+	{
+		for (int y = startRow; y < endRow; y ++)
 		{
-			for (int x = 0; x < newPic[y].length; x ++)
+			int top = 2*y * stride;
+			int bottom = top + stride;
+			for (int x = 0; x < newWidth; x ++)
 			{
 				// "Divide" the old image into blocks of 2x2 Pixels
-				// and get the average colour
-				int [] total = picture[2*y][2*x].getArrayFromPixels();
-				Pixel.addPixelArrays(total, picture[2*y][2*x+1].getArrayFromPixels(), 1);
-				Pixel.addPixelArrays(total, picture[2*y+1][2*x].getArrayFromPixels(), 1);
-				Pixel.addPixelArrays(total, picture[2*y+1][2*x+1].getArrayFromPixels(), 1);
-				
-				// Create a new Pixel with the calculated weighted average
-				newPic[y][x] = new Pixel (Pixel.getAverageValue(total, 4));
+				// and store the average colour
+				newPic[y * newWidth + x] = Pixel.average4(pixels[top + 2*x], pixels[top + 2*x+1],
+						pixels[bottom + 2*x], pixels[bottom + 2*x+1]);
 			}
 		}
-		
-		// Assign the picture reference to the new array and update image
-		picture = newPic;
+	}
+
+	/** Changes the picture to any size (see Resampler)
+	 * @param newWidth The new width
+	 * @param newHeight The new height
+	 * @param filter How the old pixels are weighted to make each new one
+	 */
+	public void resize(int newWidth, int newHeight, Resampler.Filter filter)
+	{
+		PictureMetrics.Span span = PictureMetrics.start("resize");
+		long oldPixels = (long) width * height;
+		replaceRaster(Resampler.resize(pixels, width, height, stride, newWidth, newHeight, filter),
+				newWidth, newHeight, newWidth, true);
+		PictureMetrics.end(span, oldPixels);
+	}
+
+	/** Shrinks the picture to any smaller size. Each new pixel is the
+	 *		average of the block of old pixels it covers, read from a
+	 *		SummedAreaTable, so it takes the same time however big the blocks
+	 *		are (halving an even size gives the same colours as shrink())
+	 * @param newWidth The new width (1 to the current width)
+	 * @param newHeight The new height (1 to the current height)
+	 * @throws IllegalArgumentException if the new size is not smaller
+	 */
+	public void shrink(final int newWidth, int newHeight)
+	{
+		if (newWidth < 1 || newHeight < 1 || newWidth > width || newHeight > height)
+			throw new IllegalArgumentException("Cannot shrink a " + width + "x" + height
+					+ " picture to " + newWidth + "x" + newHeight);
+		PictureMetrics.Span span = PictureMetrics.start("boxShrink");
+		long oldPixels = (long) width * height;
+		final SummedAreaTable table = getSummedAreaTable(false);
+		final int [] newPic = takeRaster(newWidth * newHeight);
+		final int oldWidth = width;
+		final int oldHeight = height;
+		final int rows = newHeight;
+		RasterScheduler.forEachBand(newHeight, newWidth, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				for (int y = startRow; y < endRow; y ++)
+				{
+					// The old rows and columns from the start of this block
+					// to the start of the next one
+					int top = (int) ((long) y * oldHeight / rows);
+					int bottom = (int) ((long) (y + 1) * oldHeight / rows);
+					for (int x = 0; x < newWidth; x ++)
+					{
+						int left = (int) ((long) x * oldWidth / newWidth);
+						int right = (int) ((long) (x + 1) * oldWidth / newWidth);
+						newPic[y * newWidth + x] = table.getAverageColour(left, top, right - left, bottom - top);
+					}
+				}
+			}
+		});
+		table.dispose();
+		replaceRaster(newPic, newWidth, newHeight, newWidth, true);
+		PictureMetrics.end(span, oldPixels);
+	}
+
+	/** Used by the batch. Thresholds with a 15x15 window and an offset of 8.
+	 */
+	public void adaptiveThreshold()
+	{
+		adaptiveThreshold(7, 8);
+	}
+
+	/** Turns the picture into black and white only (e.g. for scanned text
+	 *		with uneven lighting). A pixel becomes white if its brightness
+	 *		(weighted the same as blackAndWhite()) is more than the average
+	 *		brightness of the square around it minus the offset, and black if
+	 *		not. The averages come from a SummedAreaTable, so any radius takes
+	 *		the same time. Near the edges only the pixels inside are used.
+	 * @param radius The number of pixels in each direction to average
+	 * @param offset How much darker than its surroundings (0-255) a pixel
+	 *		must be to become black
+	 */
+	public void adaptiveThreshold(final int radius, int offset)
+	{
+		if (radius < 0)
+			throw new IllegalArgumentException("Radius must not be negative: " + radius);
+		PictureMetrics.Span span = PictureMetrics.start("threshold");
+		final SummedAreaTable table = getSummedAreaTable(false);
+		// The offset in the same hundredths as the weighted brightness
+		final long hundredths = 100L * offset;
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				for (int y = startRow; y < endRow; y ++)
+				{
+					int top = Math.max(0, y - radius);
+					int rows = Math.min(height - 1, y + radius) + 1 - top;
+					for (int x = 0; x < width; x ++)
+					{
+						int left = Math.max(0, x - radius);
+						int columns = Math.min(width - 1, x + radius) + 1 - left;
+						long total = 30 * table.getSum(SummedAreaTable.RED, left, top, columns, rows)
+								+ 59 * table.getSum(SummedAreaTable.GREEN, left, top, columns, rows)
+								+ 11 * table.getSum(SummedAreaTable.BLUE, left, top, columns, rows);
+						long count = (long) columns * rows;
+
+						// Compare brightness * count with the window's total,
+						// so nothing needs to be divided
+						int colour = pixels[y * stride + x];
+						long brightness = 30 * Pixel.red(colour) + 59 * Pixel.green(colour) + 11 * Pixel.blue(colour);
+						boolean white = brightness * count > total - hundredths * count;
+						pixels[y * stride + x] = (colour & 0xFF000000) | (white ? 0xFFFFFF : 0);
+					}
+				}
+			}
+		});
+		table.dispose();
 		updateImage();
+		PictureMetrics.end(span, (long) width * height);
+	}
+
+	/** Builds the summed-area table of the picture as it is now (it is not
+	 *		updated when the picture changes), e.g. to find the mean and
+	 *		variance of regions. Call dispose() on it once it is not needed.
+	 * @param withSquares true to also be able to find variances
+	 * @return The table
+	 */
+	public SummedAreaTable getSummedAreaTable(boolean withSquares)
+	{
+		return new SummedAreaTable(pixels, width, height, stride, withSquares);
 	}
 
 	/**
-	 * Updates the Image for this Picture using the data in the 2D array of
-	 * Pixels. This method needs to be called every time the picture data
-	 * changes so that all changes will be displayed in the main program
+	 * Marks the whole Image for this Picture as changed.
+	 * This method needs to be called every time the picture data
+	 * changes so that all changes will be displayed in the main program.
+	 * The Image shares the raster, so nothing is copied: this only
+	 * records which part of the screen needs to be drawn again.
 	 */
 	public void updateImage()
 	{
-		// Create a 1D array of picture data
-		int width = picture[0].length;
-		int height = picture.length;
-		int[] pixels = new int[width * height];
+		updateImage(0, 0, width, height);
+	}
 
-		// Fill in the 1D array of integers with the data from
-		// the 2D array of Pixels
-		int pixel = 0;
-		for (int row = 0; row < height; row++)
-			for (int col = 0; col < width; col++)
-			{
-				pixels[pixel++] = picture[row][col].getColour();
-			}
+	/**
+	 * Marks part of the Image for this Picture as changed (e.g. the area
+	 * of a flood fill), so that only that part is drawn again
+	 * @param x The x coordinate of the left of the area
+	 * @param y The y coordinate of the top of the area
+	 * @param w The width of the area
+	 * @param h The height of the area
+	 */
+	public void updateImage(int x, int y, int w, int h)
+	{
+		if (w <= 0 || h <= 0)
+			return;
+		PictureMetrics.Span span = PictureMetrics.start("updateImage");
+		rasterVersion ++;
+		if (dirty == null)
+			dirty = new Rectangle(x, y, w, h);
+		else
+			dirty.add(new Rectangle(x, y, w, h));
+		PictureMetrics.end(span, (long) w * h);
+	}
 
-		// Create the image based on the data in the 1D array
-		image = container.createImage(new MemoryImageSource(width, height,
-				pixels, 0, width));
+	/** Get the part of the image that changed since the last call, and
+	 *		start tracking changes again from nothing
+	 * @return The area to draw again, or null if nothing changed
+	 */
+	public Rectangle takeDirtyRegion()
+	{
+		Rectangle region = dirty;
+		dirty = null;
+		return region;
+	}
+	
+	/** Get a copy of this Picture as a BufferedImage (e.g. to save it)
+	 * @return A new ARGB BufferedImage with the same colours as this Picture
+	 */
+	public BufferedImage toBufferedImage()
+	{
+		int [] copy = new int [width * height];
+		for (int row = 0; row < height; row ++)
+			System.arraycopy(pixels, row * stride, copy, row * width, width);
+		return PictureIO.wrap(copy, width, height, width, true);
+	}
+	
+	/** Saves this Picture, the format is picked from the file extension
+	 *		(png, jpg/jpeg, bmp or gif)
+	 * @param file The file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException
+	{
+		PictureIO.write(this, file);
 	}
 
 	/**
@@ -614,6 +1167,10 @@ public class Picture
 	 */
 	public void draw(Graphics g, int x, int y)
 	{
+		// The image is only made again when the raster array is replaced
+		// (e.g. by shrink), all other changes show up in it directly
+		if (image == null)
+			image = PictureIO.wrap(pixels, width, height, stride, true);
 		g.drawImage(image, x, y, container);
 	}
 
@@ -0,0 +1,440 @@
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Times every effect of Picture (and the flood fill and shape detector) so
+ * that a change can be checked for being faster or slower.
+ * Usage: java -Xmx4g PictureBenchmark [options]
+ *		-sizes		Image sizes in megapixels, e.g. 1,12,48 (default 1,12)
+ *		-content	photo (res/Waterlilies.png repeated to fill the size),
+ *					shapes (a made up field of rectangles, ovals and
+ *					triangles) and/or res (every image in res/ at its own
+ *					size), default photo,shapes
+ *		-threads	Thread counts to try, e.g. 1,2,4,8 (default 1 and the
+ *					number of processors)
+ *		-effects	Effects to time, default all of them and floodfill
+ *		-warmup		Untimed runs of each effect first (default 3)
+ *		-iterations	Timed runs of each effect (default 5)
+ *		-json		Also save the results to this file as JSON
+ * Each run starts from a fresh copy of the image, the copy is not timed.
+ * The memory allocated during each run (by all threads) is also reported.
+ * @author Jerry Yu
+ * @version October 2012
+ */
+public class PictureBenchmark
+{
+	final private static String PHOTO_FILE = "res/Waterlilies.png";
+	final private static String RES_DIR = "res";
+	final private static String FLOOD_FILL = "floodfill";
+
+	// Keeps the results of the effects "used" so none of the work is skipped
+	private static volatile int checksum;
+
+	private int warmup;
+	private int iterations;
+	private List<Result> results;
+
+	/** The timing of one effect on one image with one thread count
+	 */
+	private static class Result
+	{
+		String content;
+		int width;
+		int height;
+		int threads;
+		String effect;
+		int iterations;
+		double meanMillis;
+		double minMillis;
+		long allocatedBytes;		// Per run, -1 if it cannot be measured
+	}
+
+	/** Creates a benchmark
+	 * @param warmup The number of untimed runs of each effect
+	 * @param iterations The number of timed runs of each effect
+	 */
+	public PictureBenchmark(int warmup, int iterations)
+	{
+		this.warmup = warmup;
+		this.iterations = iterations;
+		results = new ArrayList<Result>();
+	}
+
+	/** Times a list of effects on one image with each thread count
+	 * @param content The name of the kind of image (for the results)
+	 * @param source The image's raster (not changed)
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param threads The thread counts to try
+	 * @param effects The names of the effects
+	 */
+	public void run(String content, int[] source, int width, int height,
+			List<Integer> threads, List<String> effects)
+	{
+		int [] work = new int[source.length];
+		for (int threadCount : threads)
+		{
+			RasterScheduler.setParallelism(threadCount);
+			for (String effect : effects)
+			{
+				for (int i = 0; i < warmup; i ++)
+					time(effect, source, work, width, height);
+
+				Result result = new Result();
+				result.content = content;
+				result.width = width;
+				result.height = height;
+				result.threads = threadCount;
+				result.effect = effect;
+				result.iterations = iterations;
+				result.minMillis = Double.MAX_VALUE;
+				long totalNanos = 0;
+				long totalBytes = 0;
+				for (int i = 0; i < iterations; i ++)
+				{
+					Map<Long, Long> before = allocatedBytes();
+					long nanos = time(effect, source, work, width, height);
+					totalBytes += allocatedSince(before);
+					totalNanos += nanos;
+					result.minMillis = Math.min(result.minMillis, nanos / 1e6);
+				}
+				result.meanMillis = totalNanos / 1e6 / iterations;
+				result.allocatedBytes = allocatedBytes() == null ? -1 : totalBytes / iterations;
+				results.add(result);
+				print(result);
+			}
+		}
+	}
+
+	/** Runs an effect once on a fresh copy of an image
+	 * @param effect The name of the effect
+	 * @param source The image's raster (not changed)
+	 * @param work An array the size of source to copy it into
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @return The time the effect took in nanoseconds
+	 */
+	private static long time(String effect, int[] source, int[] work, int width, int height)
+	{
+		System.arraycopy(source, 0, work, 0, source.length);
+		Picture picture = new Picture(work, width, height, width, null);
+
+		long start = System.nanoTime();
+		if (effect.equals(FLOOD_FILL))
+			picture.floodFill(0, 0);
+		else
+			PictureOperation.parse(effect).apply(picture);
+		long nanos = System.nanoTime() - start;
+
+		checksum += picture.getRaster()[picture.getWidth() / 2];
+		// As the batch does, so the next run gets its rasters from the pool
+		picture.dispose();
+		return nanos;
+	}
+
+	/** Get the memory allocated so far by each live thread
+	 * @return The number of bytes for each thread id, or null if the JVM
+	 *		cannot measure it
+	 */
+	private static Map<Long, Long> allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return null;
+
+		long [] ids = threads.getAllThreadIds();
+		long [] allocated = threads.getThreadAllocatedBytes(ids);
+		Map<Long, Long> bytes = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i ++)
+			if (allocated[i] >= 0)
+				bytes.put(ids[i], allocated[i]);
+		return bytes;
+	}
+
+	/** Get the memory allocated since an earlier sample. Only the threads
+	 *		alive now are counted, each from its value in the sample (or from 0
+	 *		if it started since), so a thread that ends in between (e.g. an
+	 *		idle worker of a pool that setParallelism() replaced) cannot make
+	 *		the total go down.
+	 * @param before What allocatedBytes() returned earlier
+	 * @return The number of bytes, or 0 if the JVM cannot measure it
+	 */
+	private static long allocatedSince(Map<Long, Long> before)
+	{
+		Map<Long, Long> after = allocatedBytes();
+		if (before == null || after == null)
+			return 0;
+		long total = 0;
+		for (Map.Entry<Long, Long> entry : after.entrySet())
+		{
+			Long earlier = before.get(entry.getKey());
+			total += entry.getValue() - (earlier == null ? 0 : earlier);
+		}
+		return total;
+	}
+
+	/** Prints one result as a line of a table
+	 * @param result The result
+	 */
+	private static void print(Result result)
+	{
+		double megapixels = result.width * (double) result.height / 1e6;
+		System.out.printf(Locale.ROOT, "%-10s %5dx%-5d %2d threads  %-9s %9.2f ms  (min %9.2f)  %8.1f MP/s  %s%n",
+				result.content, result.width, result.height, result.threads, result.effect,
+				result.meanMillis, result.minMillis, megapixels / (result.meanMillis / 1000),
+				result.allocatedBytes < 0 ? "alloc n/a" : formatBytes(result.allocatedBytes) + "/op");
+	}
+
+	/** Get a number of bytes in a readable form
+	 * @param bytes The number of bytes
+	 * @return e.g. "12.3 MB"
+	 */
+	private static String formatBytes(long bytes)
+	{
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+		return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+	}
+
+	/** Saves all the results as a JSON document
+	 * @param file The file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeJSON(File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try
+		{
+			out.println("{");
+			out.printf(Locale.ROOT, "  \"java\": \"%s\",%n", System.getProperty("java.version"));
+			out.printf(Locale.ROOT, "  \"processors\": %d,%n", Runtime.getRuntime().availableProcessors());
+			out.printf(Locale.ROOT, "  \"warmup\": %d,%n", warmup);
+			out.println("  \"results\": [");
+			for (int i = 0; i < results.size(); i ++)
+			{
+				Result r = results.get(i);
+				double megapixels = r.width * (double) r.height / 1e6;
+				out.printf(Locale.ROOT, "    {\"content\": \"%s\", \"width\": %d, \"height\": %d, "
+						+ "\"threads\": %d, \"effect\": \"%s\", \"iterations\": %d, "
+						+ "\"meanMs\": %.3f, \"minMs\": %.3f, \"opsPerSec\": %.3f, "
+						+ "\"megapixelsPerSec\": %.2f, \"allocatedBytesPerOp\": %d}%s%n",
+						r.content, r.width, r.height, r.threads, r.effect, r.iterations,
+						r.meanMillis, r.minMillis, 1000 / r.meanMillis,
+						megapixels / (r.meanMillis / 1000), r.allocatedBytes,
+						i + 1 < results.size() ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+		finally
+		{
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Could not write " + file);
+	}
+
+	/** Makes a raster of about the given size by repeating an image
+	 * @param tile The raster of the image to repeat
+	 * @param tileWidth The width of the image
+	 * @param tileHeight The height of the image
+	 * @param width The width of the new raster
+	 * @param height The height of the new raster
+	 * @return The new raster
+	 */
+	public static int[] tile(int[] tile, int tileWidth, int tileHeight, int width, int height)
+	{
+		int [] pixels = new int[width * height];
+		for (int y = 0; y < height; y ++)
+		{
+			int from = (y % tileHeight) * tileWidth;
+			for (int x = 0; x < width; x += tileWidth)
+				System.arraycopy(tile, from, pixels, y * width + x, Math.min(tileWidth, width - x));
+		}
+		return pixels;
+	}
+
+	/** Makes a white image with a grid of solid rectangles, ovals and
+	 *		triangles of random sizes and colours (always the same ones)
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @return The image's raster
+	 */
+	public static int[] shapeField(int width, int height)
+	{
+		final int cell = 160;
+		Random random = new Random(42);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+
+		for (int top = 0; top + cell <= height; top += cell)
+			for (int left = 0; left + cell <= width; left += cell)
+			{
+				// Dark enough to never be close to the white background
+				g.setColor(new Color(random.nextInt(200), random.nextInt(200), random.nextInt(200)));
+				int w = cell / 3 + random.nextInt(cell / 2);
+				int h = cell / 3 + random.nextInt(cell / 2);
+				int x = left + 8 + random.nextInt(cell - w - 16);
+				int y = top + 8 + random.nextInt(cell - h - 16);
+				switch (random.nextInt(3))
+				{
+					case 0:
+						g.fillRect(x, y, w, h);
+						break;
+					case 1:
+						g.fillOval(x, y, w, h);
+						break;
+					default:
+						g.fillPolygon(new int[] {x, x + w, x + random.nextInt(w)},
+								new int[] {y + h, y + h, y}, 3);
+				}
+			}
+		g.dispose();
+		return PictureIO.getRaster(image);
+	}
+
+	/** Parses a list of numbers separated by commas
+	 * @param list The list, e.g. "1,2,4"
+	 * @return The numbers
+	 */
+	private static List<Integer> parseNumbers(String list)
+	{
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (String number : list.split(","))
+			numbers.add(Integer.parseInt(number.trim()));
+		return numbers;
+	}
+
+	/** Parses a list of names separated by commas
+	 * @param list The list, e.g. "photo,shapes"
+	 * @return The names
+	 */
+	private static List<String> parseNames(String list)
+	{
+		List<String> names = new ArrayList<String>();
+		for (String name : list.split(","))
+			if (!name.trim().isEmpty())
+				names.add(name.trim().toLowerCase());
+		return names;
+	}
+
+	/** Prints how to use this program and exits
+	 */
+	private static void usage()
+	{
+		System.err.println("Usage: java -Xmx4g PictureBenchmark [-sizes 1,12,48] [-content photo,shapes,res]");
+		System.err.println("         [-threads 1,2,4] [-effects blur,sharpen,...] [-warmup n] [-iterations n] [-json file]");
+		System.err.println("  effects: " + PictureOperation.names() + ", " + FLOOD_FILL);
+		System.exit(2);
+	}
+
+	/** Runs the benchmark from the command line
+	 * @param args See the class comment
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i ++)
+		{
+			if (!args[i].startsWith("-") || i + 1 == args.length)
+				usage();
+			options.put(args[i].substring(1), args[++i]);
+		}
+
+		List<Integer> sizes = parseNumbers(options.containsKey("sizes") ? options.get("sizes") : "1,12");
+		List<String> contents = parseNames(options.containsKey("content") ? options.get("content") : "photo,shapes");
+		int processors = Runtime.getRuntime().availableProcessors();
+		List<Integer> threads = parseNumbers(options.containsKey("threads") ? options.get("threads")
+				: processors == 1 ? "1" : "1," + processors);
+		List<String> effects = new ArrayList<String>();
+		if (options.containsKey("effects"))
+			effects = parseNames(options.get("effects"));
+		else
+		{
+			for (PictureOperation op : PictureOperation.values())
+				effects.add(op.getName());
+			effects.add(FLOOD_FILL);
+		}
+		for (String effect : effects)
+		{
+			if (effect.equals(FLOOD_FILL))
+				continue;
+			try
+			{
+				PictureOperation.parse(effect);
+			}
+			catch (IllegalArgumentException exp)
+			{
+				System.err.println(exp.getMessage());
+				usage();
+			}
+		}
+
+		PictureBenchmark benchmark = new PictureBenchmark(
+				Integer.parseInt(options.containsKey("warmup") ? options.get("warmup") : "3"),
+				Integer.parseInt(options.containsKey("iterations") ? options.get("iterations") : "5"));
+
+		for (String content : contents)
+		{
+			if (content.equals("res"))
+			{
+				// Every image as it is, the sizes do not apply
+				for (File file : ImageProcessingBatch.findInputs(RES_DIR))
+				{
+					BufferedImage image = PictureIO.read(file);
+					int [] raster = PictureIO.getRaster(image);
+					benchmark.run(file.getName(), raster.clone(), image.getWidth(), image.getHeight(),
+							threads, effects);
+				}
+				continue;
+			}
+			if (!content.equals("photo") && !content.equals("shapes"))
+			{
+				System.err.println("Unknown content: " + content);
+				usage();
+			}
+
+			for (int megapixels : sizes)
+			{
+				// A 4:3 image of about the given size
+				int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+				int height = (int) (megapixels * 1e6 / width);
+				int [] source;
+				if (content.equals("shapes"))
+					source = shapeField(width, height);
+				else
+				{
+					BufferedImage photo = PictureIO.read(new File(PHOTO_FILE));
+					source = tile(PictureIO.getRaster(photo), photo.getWidth(), photo.getHeight(),
+							width, height);
+				}
+				benchmark.run(content, source, width, height, threads, effects);
+			}
+		}
+
+		if (options.containsKey("json"))
+			benchmark.writeJSON(new File(options.get("json")));
+	}
+}
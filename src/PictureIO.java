@@ -0,0 +1,275 @@
+
+/** Loads and saves the raster of a Picture with ImageIO.
+ * Loading: an image that ImageIO already decodes as a packed ARGB int raster
+ * is used as it is (no copy). Any other type is converted to ARGB once, in
+ * one bulk operation.
+ * Saving: the raster is wrapped in a BufferedImage without copying it, as
+ * ARGB for PNG and as RGB (the alpha bits are ignored) for JPEG and BMP.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.*;
+import java.io.*;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+public class PictureIO
+{
+	// Quality used for JPEG files when none is given (0 to 1)
+	final public static float DEFAULT_JPEG_QUALITY = 0.9f;
+
+	// Bit masks of the colours in a packed 32 bit int
+	final private static int[] ARGB_MASKS = {0xFF0000, 0xFF00, 0xFF, 0xFF000000};
+	final private static int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+
+	/** Reads an image file
+	 * @param file The image file
+	 * @return The decoded image
+	 * @throws IOException if the file does not exist, cannot be read, or is
+	 *		not in a format that ImageIO knows
+	 */
+	public static BufferedImage read(File file) throws IOException
+	{
+		if (!file.isFile())
+			throw new FileNotFoundException("No such image file: " + file);
+		if (!file.canRead())
+			throw new IOException("Cannot read image file: " + file);
+
+		BufferedImage image = ImageIO.read(file);
+		if (image == null)
+			throw new IOException("Not a supported image format: " + file);
+		return image;
+	}
+
+	/** Reads an image from a stream (e.g. bytes received over the network)
+	 * @param in The stream with the encoded image
+	 * @return The decoded image
+	 * @throws IOException if the stream cannot be read or is not an image
+	 */
+	public static BufferedImage read(InputStream in) throws IOException
+	{
+		BufferedImage image = ImageIO.read(in);
+		if (image == null)
+			throw new IOException("Not a supported image format");
+		return image;
+	}
+
+	/** Reads only the width and height of an encoded image, without decoding
+	 *		the pixels (e.g. to know how much memory it will need)
+	 * @param bytes The encoded image
+	 * @return The size
+	 * @throws IOException if it is not in a format that ImageIO knows
+	 */
+	public static Dimension readSize(byte[] bytes) throws IOException
+	{
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+		try
+		{
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				throw new IOException("Not a supported image format");
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(in, true, true);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/** Get the ARGB raster of an image, as one int per pixel, row by row with
+	 *		no gaps (the stride is the width)
+	 * @param image The image
+	 * @return The image's own array if it is already a packed ARGB int
+	 *		raster, otherwise a new array with the converted colours
+	 */
+	public static int[] getRaster(BufferedImage image)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		WritableRaster raster = image.getRaster();
+
+		// Already in the right layout, no copy needed
+		if (image.getType() == BufferedImage.TYPE_INT_ARGB && isPacked(raster, width))
+			return ((DataBufferInt) raster.getDataBuffer()).getData();
+
+		// Same layout but no alpha, only need to make every pixel opaque
+		if (image.getType() == BufferedImage.TYPE_INT_RGB && isPacked(raster, width))
+		{
+			int [] rgb = ((DataBufferInt) raster.getDataBuffer()).getData();
+			int [] pixels = new int[width * height];
+			for (int i = 0; i < pixels.length; i ++)
+				pixels[i] = rgb[i] | 0xFF000000;
+			return pixels;
+		}
+
+		// Anything else is drawn (in one go) onto a new ARGB image
+		BufferedImage argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = argb.createGraphics();
+		g.setComposite(AlphaComposite.Src);
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+	}
+
+	/** Wraps a raster in a BufferedImage without copying it. Changes to the
+	 *		raster show up in the image and the other way around.
+	 * @param pixels The raster of 32 bit ARGB colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param alpha true for an ARGB image, false for an RGB image that ignores
+	 *		the alpha bits (e.g. for JPEG)
+	 * @return The image backed by the raster
+	 */
+	public static BufferedImage wrap(int[] pixels, int width, int height, int stride, boolean alpha)
+	{
+		DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+		WritableRaster raster = Raster.createPackedRaster(buffer, width, height, stride,
+				alpha ? ARGB_MASKS : RGB_MASKS, null);
+		ColorModel model = alpha ? ColorModel.getRGBdefault()
+				: new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+		return new BufferedImage(model, raster, false, null);
+	}
+
+	/** Saves a Picture, the format is picked from the file extension
+	 *		(png, jpg/jpeg, bmp or gif)
+	 * @param picture The Picture to save
+	 * @param file The file to write
+	 * @throws IOException if the file cannot be written or the extension is
+	 *		not a known format
+	 */
+	public static void write(Picture picture, File file) throws IOException
+	{
+		String format = getFormat(file);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			write(picture, format, out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/** Saves a Picture to a stream
+	 * @param picture The Picture to save
+	 * @param format "png", "jpg", "jpeg", "bmp" or "gif"
+	 * @param out The stream to write to (not closed)
+	 * @throws IOException if the stream cannot be written or the format is unknown
+	 */
+	public static void write(Picture picture, String format, OutputStream out) throws IOException
+	{
+		format = format.toLowerCase();
+		if (format.equals("jpg") || format.equals("jpeg"))
+			writeJPEG(picture, out, DEFAULT_JPEG_QUALITY);
+		else if (format.equals("png"))
+			writePNG(picture, out);
+		else
+		{
+			// BMP cannot hold alpha, GIF picks its own palette
+			BufferedImage image = wrap(picture.getRaster(), picture.getWidth(),
+					picture.getHeight(), picture.getStride(), !format.equals("bmp"));
+			if (!ImageIO.write(image, format, out))
+				throw new IOException("No writer for image format: " + format);
+		}
+	}
+
+	/** Saves a Picture as a PNG (with alpha)
+	 * @param picture The Picture to save
+	 * @param out The stream to write to (not closed)
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void writePNG(Picture picture, OutputStream out) throws IOException
+	{
+		BufferedImage image = wrap(picture.getRaster(), picture.getWidth(),
+				picture.getHeight(), picture.getStride(), true);
+		if (!ImageIO.write(image, "png", out))
+			throw new IOException("No writer for image format: png");
+	}
+
+	/** Saves a Picture as a JPEG (the alpha is dropped)
+	 * @param picture The Picture to save
+	 * @param out The stream to write to (not closed)
+	 * @param quality From 0 (smallest file) to 1 (best quality)
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void writeJPEG(Picture picture, OutputStream out, float quality) throws IOException
+	{
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext())
+			throw new IOException("No writer for image format: jpeg");
+		ImageWriter writer = writers.next();
+
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+
+		BufferedImage image = wrap(picture.getRaster(), picture.getWidth(),
+				picture.getHeight(), picture.getStride(), false);
+		ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+		try
+		{
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally
+		{
+			writer.dispose();
+			stream.close();
+		}
+	}
+
+	/** Get the image format for a file from its extension
+	 * @param file The file
+	 * @return The format name, e.g. "png"
+	 * @throws IOException if the file has no known image extension
+	 */
+	public static String getFormat(File file) throws IOException
+	{
+		String name = file.getName().toLowerCase();
+		int dot = name.lastIndexOf('.');
+		String extension = dot < 0 ? "" : name.substring(dot + 1);
+		if (extension.equals("png") || extension.equals("jpg") || extension.equals("jpeg")
+				|| extension.equals("bmp") || extension.equals("gif"))
+			return extension;
+		throw new IOException("Unknown image format for " + file
+				+ " (use .png, .jpg, .jpeg, .bmp or .gif)");
+	}
+
+	/** Checks if a raster is one int per pixel with no gaps between rows
+	 * @param raster The raster of an image
+	 * @param width The width of the image
+	 * @return true if the data can be used directly
+	 */
+	private static boolean isPacked(WritableRaster raster, int width)
+	{
+		if (!(raster.getDataBuffer() instanceof DataBufferInt)
+				|| !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| raster.getParent() != null)
+			return false;
+		SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		return model.getScanlineStride() == width
+				&& raster.getDataBuffer().getOffset() == 0
+				&& raster.getDataBuffer().getNumBanks() == 1;
+	}
+}
@@ -0,0 +1,359 @@
+
+/** Measures where the time goes in the effects. For each effect (flip,
+ * blur, floodFill, updateImage, ...) it counts the calls, the pixels, the
+ * time taken (with a histogram of the times, in power of 2 buckets of
+ * microseconds) and the memory allocated by the calling thread and by the
+ * RasterScheduler threads that ran bands of the effect for it. The shape
+ * detector also reports how many shapes it found and how big they were.
+ * Everything is passed on to the listeners as it happens, and the totals
+ * can be seen through JMX (see PictureMetricsMBean) or printed.
+ * It is off unless turned on with setEnabled() or on the command line with
+ * -Dpicture.metrics=true. When it is off an effect only checks one flag:
+ *		PictureMetrics.Span span = PictureMetrics.start("flip");
+ *		...
+ *		PictureMetrics.end(span, pixels);
+ * (start() returns null and end() does nothing with null)
+ * The report also has the hit rate of the RasterPool.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+public class PictureMetrics
+{
+	// The number of histogram buckets, bucket n holds times under 2^n microseconds
+	final public static int BUCKETS = 32;
+
+	// The name the totals are shown under in JMX
+	final public static String MBEAN_NAME = "picture:type=PictureMetrics";
+
+	private static volatile boolean enabled;
+	private static boolean registered;
+	private static List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private static Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+	private static AtomicLong shapesFound = new AtomicLong();
+	private static AtomicLong shapePixels = new AtomicLong();
+	private static AtomicLongArray shapeSizes = new AtomicLongArray(BUCKETS);
+
+	// Used to measure the memory allocated by a thread (null if not supported)
+	private static com.sun.management.ThreadMXBean allocations;
+
+	// The memory pool threads allocated while running bands for each thread
+	// (see addWorkerBytes())
+	private static ThreadLocal<long[]> workerBytes = new ThreadLocal<long[]>() {
+		protected long[] initialValue()
+		{
+			return new long[1];
+		}
+	};
+
+	static
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+			allocations = (com.sun.management.ThreadMXBean) bean;
+		if (Boolean.getBoolean("picture.metrics"))
+			setEnabled(true);
+	}
+
+	/** Told about every effect and shape as it is measured. Called on the
+	 *		thread that ran the effect, so it should return quickly.
+	 */
+	public interface Listener
+	{
+		/** Called when an effect has finished
+		 * @param operation The name of the effect
+		 * @param pixels The number of pixels it worked on
+		 * @param nanos The time it took
+		 * @param allocatedBytes The memory allocated by the calling thread
+		 *		and the pool threads that ran bands of the effect, or -1 if
+		 *		the JVM cannot measure it
+		 */
+		void operationFinished(String operation, long pixels, long nanos, long allocatedBytes);
+
+		/** Called for every shape the shape detector finds
+		 * @param pixels The number of pixels in the shape
+		 */
+		void shapeFound(int pixels);
+	}
+
+	/** One effect being measured (see start() and end())
+	 */
+	public static class Span
+	{
+		private String operation;
+		private long startNanos;
+		private long startBytes;
+
+		private Span(String operation)
+		{
+			this.operation = operation;
+			startBytes = getAllocatedBytes();
+			startNanos = System.nanoTime();
+		}
+	}
+
+	/** The totals for one effect
+	 */
+	private static class Stats
+	{
+		AtomicLong count = new AtomicLong();
+		AtomicLong nanos = new AtomicLong();
+		AtomicLong maxNanos = new AtomicLong();
+		AtomicLong pixels = new AtomicLong();
+		AtomicLong bytes = new AtomicLong();
+		AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		void add(long pixelCount, long time, long allocated)
+		{
+			count.incrementAndGet();
+			nanos.addAndGet(time);
+			pixels.addAndGet(pixelCount);
+			if (allocated > 0)
+				bytes.addAndGet(allocated);
+			histogram.incrementAndGet(getBucket(time / 1000));
+			long max = maxNanos.get();
+			while (time > max && !maxNanos.compareAndSet(max, time))
+				max = maxNanos.get();
+		}
+	}
+
+	/** Shows the totals through JMX
+	 */
+	private static class MBean implements PictureMetricsMBean
+	{
+		public boolean isEnabled()
+		{
+			return PictureMetrics.isEnabled();
+		}
+
+		public void setEnabled(boolean enabled)
+		{
+			PictureMetrics.setEnabled(enabled);
+		}
+
+		public String[] getOperations()
+		{
+			return new TreeMap<String, Stats>(stats).keySet().toArray(new String[0]);
+		}
+
+		public String[] getReportLines()
+		{
+			return getReport().split(System.lineSeparator());
+		}
+
+		public long getShapesFound()
+		{
+			return shapesFound.get();
+		}
+
+		public long getShapePixels()
+		{
+			return shapePixels.get();
+		}
+
+		public void reset()
+		{
+			PictureMetrics.reset();
+		}
+	}
+
+	/** Checks if the effects are being measured
+	 * @return true if they are
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/** Turns measuring the effects on or off. The first time it is turned on
+	 *		the totals are registered with JMX.
+	 * @param on true to measure the effects
+	 */
+	public static synchronized void setEnabled(boolean on)
+	{
+		if (on && !registered)
+		{
+			registered = true;
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						new StandardMBean(new MBean(), PictureMetricsMBean.class), new ObjectName(MBEAN_NAME));
+			}
+			catch (Exception exp)
+			{
+				// Still measured and printable, just not visible through JMX
+				System.err.println("Could not register " + MBEAN_NAME + ": " + exp.getMessage());
+			}
+		}
+		enabled = on;
+	}
+
+	/** Adds a listener that is told about every effect as it is measured
+	 * @param listener The listener
+	 */
+	public static void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/** Removes a listener
+	 * @param listener The listener
+	 */
+	public static void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/** Starts measuring an effect
+	 * @param operation The name of the effect
+	 * @return The measurement to pass to end(), or null if measuring is off
+	 */
+	public static Span start(String operation)
+	{
+		if (!enabled)
+			return null;
+		return new Span(operation);
+	}
+
+	/** Finishes measuring an effect and adds it to the totals
+	 * @param span What start() returned (nothing is done if it is null)
+	 * @param pixels The number of pixels the effect worked on
+	 */
+	public static void end(Span span, long pixels)
+	{
+		if (span == null)
+			return;
+		long nanos = System.nanoTime() - span.startNanos;
+		long bytes = span.startBytes < 0 ? -1 : getAllocatedBytes() - span.startBytes;
+
+		Stats total = stats.get(span.operation);
+		if (total == null)
+		{
+			stats.putIfAbsent(span.operation, new Stats());
+			total = stats.get(span.operation);
+		}
+		total.add(pixels, nanos, bytes);
+		for (Listener listener : listeners)
+			listener.operationFinished(span.operation, pixels, nanos, bytes);
+	}
+
+	/** Records a shape found by the shape detector (only if measuring is on)
+	 * @param pixels The number of pixels in the shape
+	 */
+	public static void shapeFound(int pixels)
+	{
+		if (!enabled)
+			return;
+		shapesFound.incrementAndGet();
+		shapePixels.addAndGet(pixels);
+		shapeSizes.incrementAndGet(getBucket(pixels));
+		for (Listener listener : listeners)
+			listener.shapeFound(pixels);
+	}
+
+	/** Forgets everything measured so far
+	 */
+	public static void reset()
+	{
+		stats.clear();
+		shapesFound.set(0);
+		shapePixels.set(0);
+		for (int i = 0; i < BUCKETS; i ++)
+			shapeSizes.set(i, 0);
+	}
+
+	/** Get the totals as a table, one line for each effect (sorted by name)
+	 *		with the count, mean and max time, the time that half of the calls
+	 *		were under (from the histogram), the throughput and the memory
+	 *		allocated, then the shape detector's and the RasterPool's totals
+	 * @return The table
+	 */
+	public static String getReport()
+	{
+		StringBuilder report = new StringBuilder();
+		String line = System.lineSeparator();
+		report.append(String.format(Locale.ROOT, "%-12s %8s %10s %10s %10s %10s %12s%s",
+				"operation", "count", "mean ms", "p50 ms<", "max ms", "MP/s", "alloc/op", line));
+		for (Map.Entry<String, Stats> entry : new TreeMap<String, Stats>(stats).entrySet())
+		{
+			Stats total = entry.getValue();
+			long count = Math.max(1, total.count.get());
+			double seconds = total.nanos.get() / 1e9;
+			report.append(String.format(Locale.ROOT, "%-12s %8d %10.3f %10.3f %10.3f %10.1f %12s%s",
+					entry.getKey(), total.count.get(), total.nanos.get() / 1e6 / count,
+					getPercentile(total.histogram, 0.5) / 1000.0, total.maxNanos.get() / 1e6,
+					seconds == 0 ? 0.0 : total.pixels.get() / 1e6 / seconds,
+					allocations == null ? "n/a" : (total.bytes.get() / count >> 10) + " KB", line));
+		}
+		if (shapesFound.get() > 0)
+			report.append(String.format(Locale.ROOT, "shape components %d, %d pixels (%d on average, half under %d)%s",
+					shapesFound.get(), shapePixels.get(), shapePixels.get() / shapesFound.get(),
+					getPercentile(shapeSizes, 0.5), line));
+		report.append(RasterPool.getStats()).append(line);
+		return report.toString();
+	}
+
+	/** Get the power of 2 bucket for a value
+	 * @param value The value (microseconds or pixels)
+	 * @return The smallest n with value < 2^n (up to BUCKETS - 1)
+	 */
+	private static int getBucket(long value)
+	{
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+	}
+
+	/** Get an upper bound on the value that a fraction of a histogram is under
+	 * @param histogram The counts in power of 2 buckets
+	 * @param fraction The fraction (e.g. 0.5 for the median)
+	 * @return The top of the bucket the fraction falls in
+	 */
+	private static long getPercentile(AtomicLongArray histogram, double fraction)
+	{
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i ++)
+			total += histogram.get(i);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i ++)
+		{
+			seen += histogram.get(i);
+			if (seen > 0 && seen >= fraction * total)
+				return 1L << i;
+		}
+		return 0;
+	}
+
+	/** Adds memory that pool threads allocated while running bands for the
+	 *		calling thread (see RasterScheduler.forEachBand()), so it counts
+	 *		towards the effects the calling thread is measuring
+	 * @param bytes The number of bytes
+	 */
+	static void addWorkerBytes(long bytes)
+	{
+		workerBytes.get()[0] += bytes;
+	}
+
+	/** Get the memory allocated so far by the calling thread, including what
+	 *		pool threads allocated for it
+	 * @return The number of bytes, or -1 if the JVM cannot measure it
+	 */
+	static long getAllocatedBytes()
+	{
+		if (allocations == null)
+			return -1;
+		return allocations.getCurrentThreadAllocatedBytes() + workerBytes.get()[0];
+	}
+}
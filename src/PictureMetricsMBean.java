@@ -0,0 +1,43 @@
+
+/** What PictureMetrics shows through JMX (e.g. in JConsole, under
+ * picture:type=PictureMetrics)
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+public interface PictureMetricsMBean
+{
+	/** Checks if the effects are being measured
+	 * @return true if they are
+	 */
+	boolean isEnabled();
+
+	/** Turns measuring the effects on or off
+	 * @param enabled true to measure them
+	 */
+	void setEnabled(boolean enabled);
+
+	/** Get the names of the effects that have been measured
+	 * @return The names, sorted
+	 */
+	String[] getOperations();
+
+	/** Get one line for each effect with its count, times and throughput
+	 * @return The lines (see PictureMetrics.getReport())
+	 */
+	String[] getReportLines();
+
+	/** Get the number of shapes the shape detector found
+	 * @return The number of shapes
+	 */
+	long getShapesFound();
+
+	/** Get the number of pixels in all the shapes the shape detector found
+	 * @return The number of pixels
+	 */
+	long getShapePixels();
+
+	/** Forgets everything measured so far
+	 */
+	void reset();
+}
@@ -0,0 +1,191 @@
+
+/** The effects that can be applied to a Picture by name, so that a list of
+ * them can be given on the command line (e.g. "shrink,sharpen,bw").
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+public enum PictureOperation
+{
+	FLIP("flip")
+	{
+		public void apply(Picture picture)
+		{
+			picture.flip();
+		}
+
+		public boolean isSelfInverse()
+		{
+			return true;
+		}
+	},
+	NEGATIVE("negative", PointOp.NEGATIVE)
+	{
+		public void apply(Picture picture)
+		{
+			picture.negative();
+		}
+
+		public boolean isSelfInverse()
+		{
+			return true;
+		}
+	},
+	BLACK_AND_WHITE("bw", PointOp.BLACK_AND_WHITE)
+	{
+		public void apply(Picture picture)
+		{
+			picture.blackAndWhite();
+		}
+	},
+	BLUR("blur")
+	{
+		public void apply(Picture picture)
+		{
+			picture.blur();
+		}
+	},
+	SHARPEN("sharpen")
+	{
+		public void apply(Picture picture)
+		{
+			picture.sharpen();
+		}
+	},
+	EMBOSS("emboss")
+	{
+		public void apply(Picture picture)
+		{
+			picture.emboss();
+		}
+	},
+	EDGES("edges")
+	{
+		public void apply(Picture picture)
+		{
+			picture.edgeDetect();
+		}
+	},
+	SHRINK("shrink")
+	{
+		public void apply(Picture picture)
+		{
+			picture.shrink();
+		}
+	},
+	THRESHOLD("threshold")
+	{
+		public void apply(Picture picture)
+		{
+			picture.adaptiveThreshold();
+		}
+	},
+	SHAPES("shapes")
+	{
+		public void apply(Picture picture)
+		{
+			picture.shapes();
+		}
+	};
+
+	private String name;
+	private PointOp pointOp;
+
+	private PictureOperation(String name)
+	{
+		this(name, null);
+	}
+
+	private PictureOperation(String name, PointOp pointOp)
+	{
+		this.name = name;
+		this.pointOp = pointOp;
+	}
+
+	/** Applies this effect to a Picture
+	 * @param picture The Picture to change
+	 */
+	public abstract void apply(Picture picture);
+
+	/** Get the per pixel version of this effect, if it only looks at each
+	 *		pixel's own colour (so it can be fused with others by a Pipeline)
+	 * @return The point effect, or null if this effect needs other pixels
+	 */
+	public PointOp getPointOp()
+	{
+		return pointOp;
+	}
+
+	/** Checks if applying this effect twice gives back the original image,
+	 *		so it can be undone without storing any pixels
+	 * @return true if this effect undoes itself
+	 */
+	public boolean isSelfInverse()
+	{
+		return false;
+	}
+
+	/** Get the name used for this effect on the command line
+	 * @return The name (e.g. "bw")
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/** Finds the effect with the given name
+	 * @param name The name of the effect (e.g. "bw")
+	 * @return The effect with that name
+	 * @throws IllegalArgumentException if there is no effect with that name
+	 */
+	public static PictureOperation parse(String name)
+	{
+		for (PictureOperation op : values())
+			if (op.name.equalsIgnoreCase(name.trim()))
+				return op;
+		throw new IllegalArgumentException("Unknown operation \"" + name
+				+ "\", expected one of " + names());
+	}
+
+	/** Finds the effects in a comma separated list of names
+	 * @param names The names of the effects in order (e.g. "shrink,sharpen")
+	 * @return The effects in the same order
+	 * @throws IllegalArgumentException if one of the names is not an effect
+	 */
+	public static List<PictureOperation> parseList(String names)
+	{
+		List<PictureOperation> ops = new ArrayList<PictureOperation>();
+		for (String name : names.split(","))
+			if (!name.trim().isEmpty())
+				ops.add(parse(name));
+		return ops;
+	}
+
+	/** Get the names of all the effects
+	 * @return The names separated by commas
+	 */
+	public static String names()
+	{
+		StringBuilder list = new StringBuilder();
+		for (PictureOperation op : values())
+		{
+			if (list.length() > 0)
+				list.append(", ");
+			list.append(op.name);
+		}
+		return list.toString();
+	}
+
+	/** Applies a list of effects to a Picture, one after another (point
+	 *		effects in a row are fused into one pass, see Pipeline)
+	 * @param picture The Picture to change
+	 * @param ops The effects in order
+	 */
+	public static void applyAll(Picture picture, List<PictureOperation> ops)
+	{
+		new Pipeline(ops).run(picture);
+	}
+}
@@ -0,0 +1,109 @@
+
+/** A list of effects that is recorded first and run later. When it is run,
+ * every run of point effects in a row (e.g. negative then black and white)
+ * is fused into a single pass over the image. Any other effect (e.g. flip,
+ * blur or shrink) needs the whole image to be up to date, so it ends the
+ * current run and is done on its own.
+ * Example: negative, bw, flip, negative takes 3 passes instead of 4:
+ *		[negative + bw] [flip] [negative]
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Pipeline
+{
+	// Each step is either a PictureOperation or a PointOp
+	private List<Object> steps;
+
+	/** Creates an empty Pipeline
+	 */
+	public Pipeline()
+	{
+		steps = new ArrayList<Object>();
+	}
+
+	/** Creates a Pipeline with the given effects
+	 * @param ops The effects in order
+	 */
+	public Pipeline(List<PictureOperation> ops)
+	{
+		this();
+		for (PictureOperation op : ops)
+			add(op);
+	}
+
+	/** Records an effect at the end of this Pipeline
+	 * @param op The effect
+	 * @return This Pipeline (so calls can be chained)
+	 */
+	public Pipeline add(PictureOperation op)
+	{
+		steps.add(op.getPointOp() != null ? op.getPointOp() : op);
+		return this;
+	}
+
+	/** Records a point effect at the end of this Pipeline
+	 * @param op The point effect
+	 * @return This Pipeline (so calls can be chained)
+	 */
+	public Pipeline add(PointOp op)
+	{
+		steps.add(op);
+		return this;
+	}
+
+	/** Get the number of passes over the image that running this takes
+	 * @return The number of passes after fusing the point effects
+	 */
+	public int getPassCount()
+	{
+		int passes = 0;
+		boolean inRun = false;
+		for (Object step : steps)
+		{
+			boolean point = step instanceof PointOp;
+			if (!point || !inRun)
+				passes ++;
+			inRun = point;
+		}
+		return passes;
+	}
+
+	/** Runs all the recorded effects on a Picture, in order
+	 * @param picture The Picture to change
+	 */
+	public void run(Picture picture)
+	{
+		List<PointOp> run = new ArrayList<PointOp>();
+		for (Object step : steps)
+		{
+			if (step instanceof PointOp)
+			{
+				run.add((PointOp) step);
+				continue;
+			}
+
+			// A stage boundary, finish the point effects before it first
+			flush(picture, run);
+			((PictureOperation) step).apply(picture);
+		}
+		flush(picture, run);
+	}
+
+	/** Applies a run of point effects in one pass and empties the run
+	 * @param picture The Picture to change
+	 * @param run The point effects in order
+	 */
+	private void flush(Picture picture, List<PointOp> run)
+	{
+		if (run.isEmpty())
+			return;
+		PictureMetrics.Span span = PictureMetrics.start("pointOps");
+		picture.applyPointOps(run.toArray(new PointOp[run.size()]));
+		PictureMetrics.end(span, (long) picture.getWidth() * picture.getHeight());
+		run.clear();
+	}
+}
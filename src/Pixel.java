@@ -7,15 +7,19 @@
 
 public class Pixel
 {
-	// Stores the Alpha, Red, Green and Blue values in a 32 bit int
-	private int colour;
+	// The 32 bit int holding the Alpha, Red, Green and Blue values lives at
+	// this index of the raster. A stand alone Pixel has a raster of size 1,
+	// a Pixel from Picture.getPixel is a view into the Picture's raster.
+	private int[] raster;
+	private int index;
 	
     /** Constructor - Creates a new Pixel object with given colour
      * @param value A 32 bit int representing the Alpha, Red, Green and Blue values
      */
 	public Pixel(int value)
 	{
-		colour = value;
+		raster = new int[] {value};
+		index = 0;
 	}
 	
 	/** Copy Constructor - Creates a new Pixel object with same colour as given
@@ -24,7 +28,18 @@ public class Pixel
      */
 	public Pixel (Pixel other)
 	{
-		colour = other.colour;
+		this(other.getColour());
+	}
+	
+	/** View Constructor - Creates a Pixel that reads and writes its colour
+			directly in the given raster (no copy is made)
+     * @param raster The array of 32 bit colours that holds this Pixel
+     * @param index The index of this Pixel's colour in the raster
+     */
+	Pixel (int[] raster, int index)
+	{
+		this.raster = raster;
+		this.index = index;
 	}
 
 	/** Changes this Pixel's colour to the new given colour
@@ -32,7 +47,7 @@ public class Pixel
      */
 	public void setColour(int colour)
 	{
-		this.colour = colour;
+		raster[index] = colour;
 	}
 	
 	/** Get this Pixel's colour (32 bit integer)
@@ -40,7 +55,7 @@ public class Pixel
      */
 	public int getColour()
 	{
-		return colour;
+		return raster[index];
 	}
 	
 	/** Get an int array representing the colour of this Pixel
@@ -49,13 +64,7 @@ public class Pixel
      */
 	public int [] getArrayFromPixels ()
 	{
-		int [] retArray = new int [4];
-		retArray[0] = colour >>> 24;			// Shifts and set 24 MSB to 0
-		retArray[1] = (colour >> 16) & 0xFF;	// The rest must be masked
-		retArray[2] = (colour >>  8) & 0xFF;
-		retArray[3] =  colour        & 0xFF;
-		
-		return retArray;
+		return getArrayFromColour(getColour());
 	}
 	
 	/** Get a formated String with information about this Pixel's colour
@@ -79,7 +88,7 @@ public class Pixel
 	 */
 	public void negative ()
 	{
-		colour ^= 0xFFFFFF;
+		setColour(negative(getColour()));
 	}
 	
 	/** Changes this Pixel's colour so that the new RGB values are the 
@@ -90,16 +99,154 @@ public class Pixel
 	 */
 	public void blackWhite ()
 	{
-		int [] arr = getArrayFromPixels();
-		
-		// Calculate new value and assign to the RGB values
-		int newValue = (int) (0.3 * arr[1] + 0.59 * arr[2] + 0.11 * arr[3]);
-		colour = Pixel.getPixelValue(arr[0], newValue, newValue, newValue);
+		setColour(blackWhite(getColour()));
 	}
 	
 	
 	/* 		Class Methods 		*/
 	
+	/** Get an int array representing the given colour
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+     * @return An int array of size 4, with the Alpha and RGB values with
+	 *		indices 0-3 respectively.
+     */
+	public static int [] getArrayFromColour (int colour)
+	{
+		int [] retArray = new int [4];
+		retArray[0] = colour >>> 24;			// Shifts and set 24 MSB to 0
+		retArray[1] = (colour >> 16) & 0xFF;	// The rest must be masked
+		retArray[2] = (colour >>  8) & 0xFF;
+		retArray[3] =  colour        & 0xFF;
+		
+		return retArray;
+	}
+	
+	/** Get the negative of a colour (see negative() above)
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @return The colour with the 24 RGB bits inverted
+     */
+	public static int negative (int colour)
+	{
+		return colour ^ 0xFFFFFF;
+	}
+	
+	/** Get the black and white version of a colour (see blackWhite() above)
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @return The colour with all 3 RGB values set to the weighted average
+     */
+	public static int blackWhite (int colour)
+	{
+		int red = (colour >> 16) & 0xFF;
+		int green = (colour >> 8) & 0xFF;
+		int blue = colour & 0xFF;
+		
+		// The weighted total in hundredths, done with ints. When it is a
+		// whole number the double version can land just under it (e.g.
+		// 14.999999) and round down, so those (about 1 in 100) still use
+		// doubles to give exactly the same values as always.
+		int total = 30 * red + 59 * green + 11 * blue;
+		int newValue = total / 100;
+		if (newValue * 100 == total)
+			newValue = (int) (0.3 * red + 0.59 * green + 0.11 * blue);
+		return (colour & 0xFF000000) | newValue * 0x010101;
+	}
+	
+	/*		Allocation free channel math (used by the effects in Picture)	*/
+	
+	/** Get the Alpha value of a colour
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @return The Alpha value (0-255)
+     */
+	public static int alpha (int colour)
+	{
+		return colour >>> 24;
+	}
+	
+	/** Get the Red value of a colour
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @return The Red value (0-255)
+     */
+	public static int red (int colour)
+	{
+		return (colour >> 16) & 0xFF;
+	}
+	
+	/** Get the Green value of a colour
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @return The Green value (0-255)
+     */
+	public static int green (int colour)
+	{
+		return (colour >> 8) & 0xFF;
+	}
+	
+	/** Get the Blue value of a colour
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @return The Blue value (0-255)
+     */
+	public static int blue (int colour)
+	{
+		return colour & 0xFF;
+	}
+	
+	/** Multiplies the RGB values of a colour by the weight and adds the results
+	 *		to a caller owned total (same layout as getArrayFromColour, the
+	 *		alpha slot is left alone). Nothing is allocated.
+	 * @param total The array of size 4 to add each result to
+	 * @param colour A 32 bit int with the Alpha, Red, Green and Blue values
+	 * @param weight The value to multiply each RGB value by
+     */
+	public static void addColour (int []total, int colour, int weight)
+	{
+		total[1] += ((colour >> 16) & 0xFF) * weight;
+		total[2] += ((colour >>  8) & 0xFF) * weight;
+		total[3] +=  (colour        & 0xFF) * weight;
+	}
+	
+	/** Limits a value to the range of one colour channel
+	 * @param v The value to limit
+	 * @return 0 if v is negative, 255 if v is larger than 255, v otherwise
+     */
+	public static int clamp (int v)
+	{
+		if (v > 255)							// Make sure no overflow
+			return 255;
+		else if (v < 0)							// Make sure no underflow
+			return 0;
+		return v;
+	}
+	
+	/** Same as getAverageValue(int [], int) below, but takes the totals as
+	 *		separate values so they can stay in local variables
+	 * @param red The total of the Red values
+	 * @param green The total of the Green values
+	 * @param blue The total of the Blue values
+	 * @param weight The value to divide each total by
+	 * @return A 32 bit representation, Alpha (always 255) and RGB in that order
+     */
+	public static int getAverageValue (int red, int green, int blue, int weight)
+	{
+		return 0xFF000000 | clamp(red / weight) << 16
+				| clamp(green / weight) << 8 | clamp(blue / weight);
+	}
+	
+	/** Get the average of 4 colours (e.g. a 2x2 block when shrinking). Red
+	 *		and Blue are added together in one int and Green in another (each
+	 *		total fits in 16 bits), so only 2 sums are needed instead of 3.
+	 * @param c1 The first colour
+	 * @param c2 The second colour
+	 * @param c3 The third colour
+	 * @param c4 The fourth colour
+	 * @return The average, with an Alpha of 255 (the same as
+	 *		getAverageValue(red, green, blue, 4) with the totals)
+     */
+	public static int average4 (int c1, int c2, int c3, int c4)
+	{
+		int redBlue = (c1 & 0xFF00FF) + (c2 & 0xFF00FF) + (c3 & 0xFF00FF) + (c4 & 0xFF00FF);
+		int green = (c1 & 0xFF00) + (c2 & 0xFF00) + (c3 & 0xFF00) + (c4 & 0xFF00);
+		return 0xFF000000 | (redBlue >> 2) & 0xFF00FF | (green >> 2) & 0xFF00;
+	}
+	
 	/** Converts the given Alpha, and RGB values into a 32 bit int
 	 * @return a 32 bit int with 4 blocks of 8 bits representing the
 	 *		Alpha, Red, Green, and Blue values from left to right
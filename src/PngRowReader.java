@@ -0,0 +1,470 @@
+
+/** Reads a PNG file one row at a time, so the whole image never has to be
+ * in memory. Only one compressed row and the row above it are kept.
+ * Handles every colour type at every bit depth (16 bit channels keep
+ * their high byte), with transparency from a tRNS chunk. Interlaced PNGs
+ * store the rows out of order so they cannot be read this way, use
+ * canRead() to check first.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class PngRowReader implements RowSource
+{
+	final private static byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+	// The longest chunk (other than image data) that is read into memory: a
+	// damaged length would otherwise allocate up to 2GB
+	final private static int MAX_CHUNK_LENGTH = 1 << 24;
+
+	// The longest row (in bytes) an array can hold
+	final private static long MAX_ROW_BYTES = Integer.MAX_VALUE - 8;
+
+	// PNG colour types
+	final private static int GREY = 0;
+	final private static int RGB = 2;
+	final private static int PALETTE = 3;
+	final private static int GREY_ALPHA = 4;
+	final private static int RGBA = 6;
+
+	private DataInputStream in;
+	private InputStream data;
+	private Inflater inflater;
+	private int width;
+	private int height;
+	private int bitDepth;
+	private int colourType;
+	private int rowsRead;
+
+	// The colours of a palette image, and the colour (as samples) that is
+	// transparent in a grey or RGB image (-1 if none)
+	private int[] palette;
+	private long transparent = -1;
+
+	// Bytes per complete pixel (at least 1) and per row, for unfiltering
+	private int filterStep;
+	private int rowBytes;
+	private byte[] row;
+	private byte[] previous;
+
+	// The IDAT chunk being read
+	private int chunkLeft;
+	private CRC32 chunkCrc;
+	private boolean dataEnded;
+
+	/** Opens a PNG file and reads everything up to the image data
+	 * @param file The PNG file
+	 * @throws IOException if it is not a PNG file, is interlaced or is damaged
+	 */
+	public PngRowReader(File file) throws IOException
+	{
+		this(new FileInputStream(file));
+	}
+
+	/** Reads everything in a PNG stream up to the image data
+	 * @param stream The stream with the PNG (closed by close())
+	 * @throws IOException if it is not a PNG, is interlaced or is damaged
+	 */
+	public PngRowReader(InputStream stream) throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+		try
+		{
+			readHeader();
+		}
+		catch (IOException exp)
+		{
+			in.close();
+			throw exp;
+		}
+
+		filterStep = Math.max(1, bitsPerPixel() / 8);
+		row = new byte[rowBytes];
+		previous = new byte[rowBytes];
+		inflater = new Inflater();
+		data = new InflaterInputStream(new InputStream() {
+			public int read() throws IOException
+			{
+				byte [] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+			}
+
+			public int read(byte[] bytes, int offset, int length) throws IOException
+			{
+				return readData(bytes, offset, length);
+			}
+		}, inflater, 1 << 16);
+	}
+
+	/** Checks if a file is a PNG that can be read one row at a time
+	 * @param file The file
+	 * @return true if it is a PNG that is not interlaced
+	 */
+	public static boolean canRead(File file)
+	{
+		try
+		{
+			new PngRowReader(file).close();
+			return true;
+		}
+		catch (IOException exp)
+		{
+			return false;
+		}
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public void readRows(int[] pixels, int offset, int stride, int count) throws IOException
+	{
+		if (rowsRead + count > height)
+			throw new IOException("Only " + height + " rows in the image");
+
+		for (int r = 0; r < count; r ++)
+		{
+			int filter = data.read();
+			if (filter < 0)
+				throw new EOFException("The image data ends at row " + rowsRead);
+			byte [] swap = previous;
+			previous = row;
+			row = swap;
+			readFully(row);
+			unfilter(filter);
+			convert(pixels, offset + r * stride);
+			rowsRead ++;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		inflater.end();
+		in.close();
+	}
+
+	/** Reads the signature and the chunks before the first IDAT
+	 * @throws IOException if it is not a PNG that can be streamed
+	 */
+	private void readHeader() throws IOException
+	{
+		byte [] signature = new byte[SIGNATURE.length];
+		in.readFully(signature);
+		if (!java.util.Arrays.equals(signature, SIGNATURE))
+			throw new IOException("Not a PNG file");
+
+		while (true)
+		{
+			int length = readLength();
+			String type = readType();
+			if (type.equals("IDAT"))
+			{
+				// The data is read as it is needed
+				if (width == 0)
+					throw new IOException("PNG has no IHDR chunk");
+				chunkLeft = length;
+				chunkCrc = new CRC32();
+				chunkCrc.update(type.getBytes("US-ASCII"));
+				return;
+			}
+
+			if (length > MAX_CHUNK_LENGTH)
+				throw new IOException("PNG " + type + " chunk is too long: " + length + " bytes");
+			byte [] bytes = new byte[length];
+			in.readFully(bytes);
+			checkCrc(type, bytes);
+			DataInputStream chunk = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (type.equals("IHDR"))
+			{
+				width = chunk.readInt();
+				height = chunk.readInt();
+				bitDepth = chunk.readUnsignedByte();
+				colourType = chunk.readUnsignedByte();
+				chunk.readUnsignedByte();		// Compression, always deflate
+				chunk.readUnsignedByte();		// Filter method, always adaptive
+				if (chunk.readUnsignedByte() != 0)
+					throw new IOException("Interlaced PNGs cannot be read one row at a time");
+				if (width <= 0 || height <= 0 || channels() == 0)
+					throw new IOException("Damaged PNG header");
+				long size = ((long) width * bitsPerPixel() + 7) / 8;
+				if (size > MAX_ROW_BYTES)
+					throw new IOException("PNG rows are too long to read: " + size + " bytes");
+				rowBytes = (int) size;
+			}
+			else if (type.equals("PLTE"))
+			{
+				if (length % 3 != 0 || length > 256 * 3)
+					throw new IOException("Damaged PNG palette");
+				palette = new int[256];
+				for (int i = 0; i < length / 3; i ++)
+					palette[i] = 0xFF000000 | (bytes[i * 3] & 0xFF) << 16
+							| (bytes[i * 3 + 1] & 0xFF) << 8 | (bytes[i * 3 + 2] & 0xFF);
+			}
+			else if (type.equals("tRNS"))
+			{
+				if (colourType == PALETTE && palette != null)
+				{
+					for (int i = 0; i < length && i < 256; i ++)
+						palette[i] = (palette[i] & 0xFFFFFF) | (bytes[i] & 0xFF) << 24;
+				}
+				else if (colourType == GREY)
+					transparent = chunk.readUnsignedShort();
+				else if (colourType == RGB)
+					transparent = (long) chunk.readUnsignedShort() << 32
+							| (long) chunk.readUnsignedShort() << 16 | chunk.readUnsignedShort();
+			}
+			else if (type.equals("IEND"))
+				throw new IOException("PNG has no image data");
+		}
+	}
+
+	/** Reads the compressed image data from the IDAT chunks in order
+	 * @param bytes The array to read into
+	 * @param offset The index of the first byte to read
+	 * @param length The most bytes to read
+	 * @return The number of bytes read, or -1 after the last IDAT chunk
+	 * @throws IOException if the file is damaged
+	 */
+	private int readData(byte[] bytes, int offset, int length) throws IOException
+	{
+		while (chunkLeft == 0)
+		{
+			if (dataEnded)
+				return -1;
+
+			// The end of a chunk, check it and move on to the next one
+			if (in.readInt() != (int) chunkCrc.getValue())
+				throw new IOException("PNG image data is damaged (bad CRC)");
+			chunkLeft = readLength();
+			String type = readType();
+			if (!type.equals("IDAT"))
+			{
+				// The rest of the file is not needed
+				chunkLeft = 0;
+				dataEnded = true;
+				return -1;
+			}
+			chunkCrc = new CRC32();
+			chunkCrc.update(type.getBytes("US-ASCII"));
+		}
+
+		int read = in.read(bytes, offset, Math.min(length, chunkLeft));
+		if (read < 0)
+			throw new EOFException("PNG image data ends early");
+		chunkCrc.update(bytes, offset, read);
+		chunkLeft -= read;
+		return read;
+	}
+
+	/** Reads the length at the start of a chunk
+	 * @return The number of data bytes in the chunk
+	 * @throws IOException if the file ends or the length is over 2^31 - 1
+	 *		(which PNG does not allow)
+	 */
+	private int readLength() throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Damaged PNG chunk length: " + (length & 0xFFFFFFFFL));
+		return length;
+	}
+
+	/** Reads the 4 letter type of a chunk
+	 * @return The type
+	 * @throws IOException if the file ends
+	 */
+	private String readType() throws IOException
+	{
+		byte [] type = new byte[4];
+		in.readFully(type);
+		return new String(type, "US-ASCII");
+	}
+
+	/** Checks the CRC after a chunk
+	 * @param type The chunk type
+	 * @param bytes The chunk data
+	 * @throws IOException if the CRC does not match
+	 */
+	private void checkCrc(String type, byte[] bytes) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(type.getBytes("US-ASCII"));
+		crc.update(bytes);
+		if (in.readInt() != (int) crc.getValue())
+			throw new IOException("PNG " + type + " chunk is damaged (bad CRC)");
+	}
+
+	/** Reads exactly one row of decompressed data
+	 * @param bytes The array to fill
+	 * @throws IOException if the data ends early
+	 */
+	private void readFully(byte[] bytes) throws IOException
+	{
+		int done = 0;
+		while (done < bytes.length)
+		{
+			int read = data.read(bytes, done, bytes.length - done);
+			if (read < 0)
+				throw new EOFException("The image data ends at row " + rowsRead);
+			done += read;
+		}
+	}
+
+	/** Undoes the filter of the current row (using the row above)
+	 * @param filter The filter type from the start of the row
+	 * @throws IOException if the filter type is not known
+	 */
+	private void unfilter(int filter) throws IOException
+	{
+		int step = filterStep;
+		switch (filter)
+		{
+			case 0:
+				break;
+			case 1:
+				for (int i = step; i < rowBytes; i ++)
+					row[i] += row[i - step];
+				break;
+			case 2:
+				for (int i = 0; i < rowBytes; i ++)
+					row[i] += previous[i];
+				break;
+			case 3:
+				for (int i = 0; i < rowBytes; i ++)
+				{
+					int a = i >= step ? row[i - step] & 0xFF : 0;
+					row[i] += (a + (previous[i] & 0xFF)) >> 1;
+				}
+				break;
+			case 4:
+				for (int i = 0; i < rowBytes; i ++)
+				{
+					int a = i >= step ? row[i - step] & 0xFF : 0;
+					int c = i >= step ? previous[i - step] & 0xFF : 0;
+					row[i] += PngRowWriter.paethPredictor(a, previous[i] & 0xFF, c);
+				}
+				break;
+			default:
+				throw new IOException("Unknown PNG filter " + filter + " at row " + rowsRead);
+		}
+	}
+
+	/** Turns the current row into 32 bit ARGB colours
+	 * @param pixels The array to store the colours in
+	 * @param start The index of the first pixel of the row
+	 */
+	private void convert(int[] pixels, int start)
+	{
+		int channels = channels();
+		for (int x = 0; x < width; x ++)
+		{
+			int colour;
+			if (colourType == PALETTE)
+				colour = palette == null ? 0 : palette[sample(x)];
+			else if (colourType == GREY)
+			{
+				int grey = sample(x);
+				int value = scale(grey);
+				colour = grey == transparent ? value * 0x010101
+						: 0xFF000000 | value * 0x010101;
+			}
+			else if (colourType == RGB)
+			{
+				long red = sample(x * 3);
+				long green = sample(x * 3 + 1);
+				long blue = sample(x * 3 + 2);
+				colour = scale((int) red) << 16 | scale((int) green) << 8 | scale((int) blue);
+				if ((red << 32 | green << 16 | blue) != transparent)
+					colour |= 0xFF000000;
+			}
+			else
+			{
+				// Grey or RGB with alpha as the last channel
+				int alpha = scale(sample(x * channels + channels - 1));
+				if (colourType == GREY_ALPHA)
+					colour = alpha << 24 | scale(sample(x * 2)) * 0x010101;
+				else
+					colour = alpha << 24 | scale(sample(x * 4)) << 16
+							| scale(sample(x * 4 + 1)) << 8 | scale(sample(x * 4 + 2));
+			}
+			pixels[start + x] = colour;
+		}
+	}
+
+	/** Get one sample (channel value) of the current row
+	 * @param i The index of the sample in the row
+	 * @return The sample, from 0 up to 2^bitDepth - 1
+	 */
+	private int sample(int i)
+	{
+		switch (bitDepth)
+		{
+			case 8:
+				return row[i] & 0xFF;
+			case 16:
+				return (row[i * 2] & 0xFF) << 8 | (row[i * 2 + 1] & 0xFF);
+			default:
+				// Several samples packed in a byte, left most first
+				int perByte = 8 / bitDepth;
+				int shift = 8 - bitDepth * (i % perByte + 1);
+				return (row[i / perByte] >> shift) & ((1 << bitDepth) - 1);
+		}
+	}
+
+	/** Scales a sample to 0 - 255
+	 * @param sample The sample
+	 * @return The 8 bit value
+	 */
+	private int scale(int sample)
+	{
+		if (bitDepth == 8)
+			return sample;
+		if (bitDepth == 16)
+			return sample >> 8;			// The high byte (the same as ImageIO)
+		int max = (1 << bitDepth) - 1;
+		return (sample * 255 + max / 2) / max;
+	}
+
+	/** Get the number of samples per pixel
+	 * @return The number of channels, or 0 for a colour type or bit depth
+	 *		that PNG does not allow
+	 */
+	private int channels()
+	{
+		switch (colourType)
+		{
+			case GREY:
+				return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8
+						|| bitDepth == 16 ? 1 : 0;
+			case PALETTE:
+				return bitDepth <= 8 && Integer.bitCount(bitDepth) == 1 ? 1 : 0;
+			case RGB:
+			case GREY_ALPHA:
+			case RGBA:
+				if (bitDepth != 8 && bitDepth != 16)
+					return 0;
+				return colourType == RGB ? 3 : colourType == GREY_ALPHA ? 2 : 4;
+			default:
+				return 0;
+		}
+	}
+
+	/** Get the number of bits used by one pixel
+	 * @return The number of bits
+	 */
+	private int bitsPerPixel()
+	{
+		return channels() * bitDepth;
+	}
+}
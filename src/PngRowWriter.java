@@ -0,0 +1,208 @@
+
+/** Writes a PNG file one row at a time, so the whole image never has to be
+ * in memory. The image is saved as 8 bit RGBA. Each row uses whichever of
+ * the 5 PNG filters gives the smallest total (a common way to guess which
+ * one compresses best), then all the rows are compressed as they arrive
+ * and written out in IDAT chunks of up to 64KB.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class PngRowWriter implements RowSink
+{
+	final private static byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+	final private static int CHUNK_SIZE = 1 << 16;
+	final private static int BYTES_PER_PIXEL = 4;
+
+	private DataOutputStream out;
+	private DeflaterOutputStream data;
+	private Deflater deflater;
+	private int width;
+	private int height;
+	private int rowsWritten;
+
+	// The unfiltered bytes of this row and the one above it
+	private byte[] row;
+	private byte[] previous;
+	// The row filtered with each of the filters (the filter type goes first)
+	private byte[][] filtered;
+
+	/** Creates a writer, nothing is written until begin()
+	 * @param out The stream to write the PNG to (closed by close())
+	 */
+	public PngRowWriter(OutputStream out)
+	{
+		this.out = new DataOutputStream(out);
+	}
+
+	public void begin(int width, int height) throws IOException
+	{
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Image size must be positive: " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		row = new byte[width * BYTES_PER_PIXEL];
+		previous = new byte[width * BYTES_PER_PIXEL];
+		filtered = new byte[5][width * BYTES_PER_PIXEL + 1];
+
+		out.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream ihdr = new DataOutputStream(header);
+		ihdr.writeInt(width);
+		ihdr.writeInt(height);
+		ihdr.writeByte(8);			// Bits per channel
+		ihdr.writeByte(6);			// RGBA
+		ihdr.writeByte(0);			// Deflate
+		ihdr.writeByte(0);			// Adaptive filtering
+		ihdr.writeByte(0);			// Not interlaced
+		writeChunk("IHDR", header.toByteArray(), 0, header.size());
+
+		// Compressed data goes into IDAT chunks as it comes out of the Deflater
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		data = new DeflaterOutputStream(new BufferedOutputStream(new OutputStream() {
+			public void write(int b) throws IOException
+			{
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			public void write(byte[] bytes, int offset, int length) throws IOException
+			{
+				for (int i = 0; i < length; i += CHUNK_SIZE)
+					writeChunk("IDAT", bytes, offset + i, Math.min(CHUNK_SIZE, length - i));
+			}
+		}, CHUNK_SIZE), deflater, 8192);
+	}
+
+	public void writeRows(int[] pixels, int offset, int stride, int count) throws IOException
+	{
+		if (rowsWritten + count > height)
+			throw new IllegalStateException("More rows written than the height " + height);
+
+		for (int r = 0; r < count; r ++)
+		{
+			// Unpack the colours into R, G, B, A bytes
+			int start = offset + r * stride;
+			for (int x = 0; x < width; x ++)
+			{
+				int colour = pixels[start + x];
+				row[x * 4] = (byte) (colour >> 16);
+				row[x * 4 + 1] = (byte) (colour >> 8);
+				row[x * 4 + 2] = (byte) colour;
+				row[x * 4 + 3] = (byte) (colour >>> 24);
+			}
+
+			byte [] best = filter();
+			data.write(best, 0, best.length);
+
+			byte [] swap = previous;
+			previous = row;
+			row = swap;
+			rowsWritten ++;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			if (data != null)
+			{
+				if (rowsWritten != height)
+					throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+				data.finish();
+				data.flush();
+				deflater.end();
+				writeChunk("IEND", new byte[0], 0, 0);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/** Filters the current row with every filter and picks the best one
+	 * @return The filter type followed by the filtered row
+	 */
+	private byte[] filter()
+	{
+		int length = row.length;
+		long [] totals = new long[5];
+		for (int type = 0; type < 5; type ++)
+			filtered[type][0] = (byte) type;
+
+		for (int i = 0; i < length; i ++)
+		{
+			int x = row[i] & 0xFF;
+			int a = i >= BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xFF : 0;
+			int b = previous[i] & 0xFF;
+			int c = i >= BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xFF : 0;
+
+			byte none = (byte) x;
+			byte sub = (byte) (x - a);
+			byte up = (byte) (x - b);
+			byte average = (byte) (x - ((a + b) >> 1));
+			byte paeth = (byte) (x - paethPredictor(a, b, c));
+			filtered[0][i + 1] = none;
+			filtered[1][i + 1] = sub;
+			filtered[2][i + 1] = up;
+			filtered[3][i + 1] = average;
+			filtered[4][i + 1] = paeth;
+
+			// Treat the bytes as signed, small values either way compress well
+			totals[0] += Math.abs(none);
+			totals[1] += Math.abs(sub);
+			totals[2] += Math.abs(up);
+			totals[3] += Math.abs(average);
+			totals[4] += Math.abs(paeth);
+		}
+
+		int best = 0;
+		for (int type = 1; type < 5; type ++)
+			if (totals[type] < totals[best])
+				best = type;
+		return filtered[best];
+	}
+
+	/** The Paeth predictor from the PNG specification
+	 * @param a The byte to the left
+	 * @param b The byte above
+	 * @param c The byte above and to the left
+	 * @return Whichever of a, b and c is closest to a + b - c
+	 */
+	static int paethPredictor(int a, int b, int c)
+	{
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+
+	/** Writes one chunk with its length and CRC
+	 * @param type The 4 letter chunk type
+	 * @param bytes The array with the chunk data
+	 * @param offset The index of the first byte of data
+	 * @param length The number of bytes of data
+	 * @throws IOException if the chunk cannot be written
+	 */
+	private void writeChunk(String type, byte[] bytes, int offset, int length) throws IOException
+	{
+		byte [] name = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(bytes, offset, length);
+
+		out.writeInt(length);
+		out.write(name);
+		out.write(bytes, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+}
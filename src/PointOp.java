@@ -0,0 +1,52 @@
+
+/** An effect that calculates each pixel's new colour from only its old colour
+ * (e.g. negative or black and white). Because they do not look at any other
+ * pixels, any number of them can be done one after another in a single pass
+ * over the image (see Picture.applyPointOps and Pipeline).
+ * The effects are applied to a whole run of pixels at a time, so the common
+ * ones can use a simple loop that the JIT compiler turns into SIMD code.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+public abstract class PointOp
+{
+	// Inverts the RGB values (see Pixel.negative)
+	final public static PointOp NEGATIVE = new PointOp() {
+		public int apply(int colour)
+		{
+			return Pixel.negative(colour);
+		}
+		
+		public void apply(int[] pixels, int start, int end)
+		{
+			for (int i = start; i < end; i ++)
+				pixels[i] ^= 0xFFFFFF;
+		}
+	};
+
+	// Weighted average of the RGB values (see Pixel.blackWhite)
+	final public static PointOp BLACK_AND_WHITE = new PointOp() {
+		public int apply(int colour)
+		{
+			return Pixel.blackWhite(colour);
+		}
+	};
+
+	/** Calculates the new colour of a pixel
+	 * @param colour The old 32 bit ARGB colour
+	 * @return The new 32 bit ARGB colour
+	 */
+	public abstract int apply(int colour);
+
+	/** Changes the colours of a run of pixels in place
+	 * @param pixels The raster
+	 * @param start The index of the first pixel
+	 * @param end One past the index of the last pixel
+	 */
+	public void apply(int[] pixels, int start, int end)
+	{
+		for (int i = start; i < end; i ++)
+			pixels[i] = apply(pixels[i]);
+	}
+}
@@ -0,0 +1,282 @@
+
+/** Runs image jobs (an encoded image and a list of effects) for a long
+ * running program, e.g. a worker that takes uploads from a queue. Each job
+ * gets its own Picture, so no Picture is ever used by two threads, and the
+ * effects themselves are the same ones the GUI and the batch use.
+ * The memory the rasters can use is limited: before a job is queued its
+ * size is read from the image header (without decoding it) and its raster
+ * memory is taken from the budget, and it is given back once the job is
+ * done. When the budget is used up, submit() waits (backpressure), so a
+ * burst of large images slows the caller down instead of running out of
+ * memory. A job bigger than the whole budget waits until it can run alone.
+ * The jobs run on any ExecutorService (e.g. a fixed pool, or virtual
+ * threads on a JVM that has them).
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class ProcessingService implements Closeable
+{
+	// Rasters of the image size a job can have at once (the decoded image,
+	// the new raster of an effect like sharpen or shrink, and the encoder's copy)
+	final public static int RASTER_COPIES = 3;
+
+	// The budget is counted in KB so that it fits in a Semaphore
+	final private static int KB = 1024;
+
+	private ExecutorService executor;
+	private boolean ownsExecutor;
+	private Semaphore memory;
+	private int budgetKB;
+
+	/** The result of one job and how long each part of it took
+	 */
+	public static class Result
+	{
+		private byte[] output;
+		private int width;
+		private int height;
+		private long waitNanos;
+		private long queueNanos;
+		private long decodeNanos;
+		private long processNanos;
+		private long encodeNanos;
+
+		/** Get the encoded result
+		 * @return The bytes of the image
+		 */
+		public byte[] getOutput()
+		{
+			return output;
+		}
+
+		/** Get the width of the result
+		 * @return The width in pixels
+		 */
+		public int getWidth()
+		{
+			return width;
+		}
+
+		/** Get the height of the result
+		 * @return The height in pixels
+		 */
+		public int getHeight()
+		{
+			return height;
+		}
+
+		/** Get the time submit() took to read the image header and wait for memory
+		 * @return The time in nanoseconds
+		 */
+		public long getWaitNanos()
+		{
+			return waitNanos;
+		}
+
+		/** Get the time the job waited for a thread
+		 * @return The time in nanoseconds
+		 */
+		public long getQueueNanos()
+		{
+			return queueNanos;
+		}
+
+		/** Get the time taken to decode the input
+		 * @return The time in nanoseconds
+		 */
+		public long getDecodeNanos()
+		{
+			return decodeNanos;
+		}
+
+		/** Get the time taken by the effects
+		 * @return The time in nanoseconds
+		 */
+		public long getProcessNanos()
+		{
+			return processNanos;
+		}
+
+		/** Get the time taken to encode the result
+		 * @return The time in nanoseconds
+		 */
+		public long getEncodeNanos()
+		{
+			return encodeNanos;
+		}
+
+		public String toString()
+		{
+			return String.format("%dx%d, %d bytes: wait %.1f ms, queue %.1f ms, decode %.1f ms, "
+					+ "process %.1f ms, encode %.1f ms", width, height, output.length, waitNanos / 1e6,
+					queueNanos / 1e6, decodeNanos / 1e6, processNanos / 1e6, encodeNanos / 1e6);
+		}
+	}
+
+	/** Creates a service with its own fixed pool of threads
+	 * @param threads The number of jobs that can run at the same time
+	 * @param memoryBudget The most memory (in bytes) the rasters of the
+	 *		queued and running jobs can use
+	 */
+	public ProcessingService(int threads, long memoryBudget)
+	{
+		this(Executors.newFixedThreadPool(threads), memoryBudget);
+		ownsExecutor = true;
+	}
+
+	/** Creates a service that runs the jobs on an executor
+	 * @param executor Runs the jobs (not shut down by close())
+	 * @param memoryBudget The most memory (in bytes) the rasters of the
+	 *		queued and running jobs can use
+	 */
+	public ProcessingService(ExecutorService executor, long memoryBudget)
+	{
+		if (memoryBudget < KB || memoryBudget / KB > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Memory budget must be from 1KB to 2TB: " + memoryBudget);
+		this.executor = executor;
+		budgetKB = (int) (memoryBudget / KB);
+		memory = new Semaphore(budgetKB, true);
+	}
+
+	/** Queues a job, waiting first if the memory budget is used up
+	 * @param input The encoded image (any format ImageIO can read)
+	 * @param ops The effects to apply, in order
+	 * @param format The format of the result (e.g. "png" or "jpg")
+	 * @return The result, once the job is done
+	 * @throws IOException if the input is not an image
+	 * @throws InterruptedException if interrupted while waiting for memory
+	 */
+	public CompletableFuture<Result> submit(byte[] input, List<PictureOperation> ops, String format)
+			throws IOException, InterruptedException
+	{
+		long start = System.nanoTime();
+		int needed = getMemoryKB(input);
+		memory.acquire(needed);
+		return run(input, ops, format, needed, System.nanoTime() - start);
+	}
+
+	/** Queues a job if there is memory for it within a time limit
+	 * @param input The encoded image (any format ImageIO can read)
+	 * @param ops The effects to apply, in order
+	 * @param format The format of the result (e.g. "png" or "jpg")
+	 * @param timeout The longest time to wait for memory
+	 * @param unit The unit of the timeout
+	 * @return The result once the job is done, or null if there was not
+	 *		enough memory in time (the job is not queued)
+	 * @throws IOException if the input is not an image
+	 * @throws InterruptedException if interrupted while waiting for memory
+	 */
+	public CompletableFuture<Result> trySubmit(byte[] input, List<PictureOperation> ops, String format,
+			long timeout, TimeUnit unit) throws IOException, InterruptedException
+	{
+		long start = System.nanoTime();
+		int needed = getMemoryKB(input);
+		if (!memory.tryAcquire(needed, timeout, unit))
+			return null;
+		return run(input, ops, format, needed, System.nanoTime() - start);
+	}
+
+	/** Get the memory left in the budget
+	 * @return The number of bytes
+	 */
+	public long getAvailableMemory()
+	{
+		return (long) memory.availablePermits() * KB;
+	}
+
+	/** Get the memory the queued and running jobs have taken from the budget
+	 * @return The number of bytes
+	 */
+	public long getUsedMemory()
+	{
+		return (long) (budgetKB - memory.availablePermits()) * KB;
+	}
+
+	/** Stops taking jobs. Jobs already queued still finish, and the pool is
+	 *		shut down if the service made it.
+	 */
+	public void close()
+	{
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+
+	/** Works out how much of the budget a job needs from its image header
+	 * @param input The encoded image
+	 * @return The memory in KB (at most the whole budget)
+	 * @throws IOException if the input is not an image
+	 */
+	private int getMemoryKB(byte[] input) throws IOException
+	{
+		Dimension size = PictureIO.readSize(input);
+		long bytes = 4L * size.width * size.height * RASTER_COPIES;
+		return (int) Math.max(1, Math.min(budgetKB, (bytes + KB - 1) / KB));
+	}
+
+	/** Queues a job that already has its memory
+	 * @param input The encoded image
+	 * @param ops The effects to apply, in order
+	 * @param format The format of the result
+	 * @param memoryKB The memory taken for it, given back when it is done
+	 * @param waitNanos The time spent waiting for the memory
+	 * @return The result, once the job is done
+	 */
+	private CompletableFuture<Result> run(final byte[] input, final List<PictureOperation> ops,
+			final String format, final int memoryKB, long waitNanos)
+	{
+		final CompletableFuture<Result> future = new CompletableFuture<Result>();
+		final Result result = new Result();
+		result.waitNanos = waitNanos;
+		final long queued = System.nanoTime();
+		try
+		{
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						long start = System.nanoTime();
+						result.queueNanos = start - queued;
+						Picture picture = new Picture(PictureIO.read(new ByteArrayInputStream(input)), null);
+						long decoded = System.nanoTime();
+						result.decodeNanos = decoded - start;
+
+						PictureOperation.applyAll(picture, ops);
+						long processed = System.nanoTime();
+						result.processNanos = processed - decoded;
+
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						PictureIO.write(picture, format, out);
+						result.encodeNanos = System.nanoTime() - processed;
+						result.output = out.toByteArray();
+						result.width = picture.getWidth();
+						result.height = picture.getHeight();
+						picture.dispose();
+						memory.release(memoryKB);
+						future.complete(result);
+					}
+					catch (Throwable exp)
+					{
+						memory.release(memoryKB);
+						future.completeExceptionally(exp);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException exp)
+		{
+			memory.release(memoryKB);
+			throw exp;
+		}
+		return future;
+	}
+}
@@ -0,0 +1,172 @@
+
+/** Keeps rasters (int arrays) that are no longer needed so that the next
+ * effect that needs one can use it instead of allocating a new one. The
+ * arrays are sorted into size classes, 4 for each power of 2 (e.g. 4096,
+ * 5120, 6144, 7168, 8192, ...), so an array is at most 25% bigger than what
+ * was asked for and one of the same image size is always in the same class.
+ * take() gives an array of at least the length asked for: it may be longer
+ * and its colours are whatever was there before, so the caller must write
+ * every pixel it uses (with a stride of the width the extra ints are never
+ * looked at). Only arrays that nothing else uses may be given back.
+ * The pool holds at most its budget of arrays, any more are left to the
+ * garbage collector. The budget (in MB) can be set on the command line with
+ * -Dpicture.poolBudget=n
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class RasterPool
+{
+	// Arrays shorter than this (16KB) are cheap enough to allocate every time
+	final public static int MIN_LENGTH = 1 << 12;
+
+	// Size classes for every length an int array can have
+	final private static int CLASSES = 4 * 30;
+
+	private static long budget = Long.getLong("picture.poolBudget", 256) << 20;
+	private static long pooledBytes;
+	// The waiting arrays of each size class
+	private static List<ArrayDeque<int[]>> free = new ArrayList<ArrayDeque<int[]>>(CLASSES);
+	static
+	{
+		for (int i = 0; i < CLASSES; i ++)
+			free.add(new ArrayDeque<int[]>());
+	}
+
+	private static long takes;
+	private static long hits;
+	private static long gives;
+	private static long dropped;
+
+	/** Gets an array of at least a length, from the pool if there is one
+	 * @param length The number of ints needed
+	 * @return An array of at least that length (its contents are not cleared)
+	 */
+	public static int[] take(int length)
+	{
+		if (length < MIN_LENGTH)
+			return new int[length];
+		int index = getClassAtLeast(length);
+		synchronized (RasterPool.class)
+		{
+			takes ++;
+			ArrayDeque<int[]> arrays = free.get(index);
+			if (!arrays.isEmpty())
+			{
+				hits ++;
+				int [] array = arrays.pop();
+				pooledBytes -= 4L * array.length;
+				return array;
+			}
+		}
+		return new int[getClassSize(index)];
+	}
+
+	/** Gives an array back so it can be used again. Nothing else may use the
+	 *		array afterwards.
+	 * @param array The array (ignored if it is null or too short to pool)
+	 */
+	public static void give(int[] array)
+	{
+		if (array == null || array.length < MIN_LENGTH)
+			return;
+		// The class of the largest size that fits in the array, so that
+		// take() can always use it for that size
+		int index = getClassAtMost(array.length);
+		synchronized (RasterPool.class)
+		{
+			gives ++;
+			if (pooledBytes + 4L * array.length > budget)
+			{
+				dropped ++;
+				return;
+			}
+			free.get(index).push(array);
+			pooledBytes += 4L * array.length;
+		}
+	}
+
+	/** Changes the most memory the pooled arrays can use, dropping arrays if
+	 *		it is now over the budget
+	 * @param bytes The budget in bytes (0 turns pooling off)
+	 */
+	public static synchronized void setBudget(long bytes)
+	{
+		if (bytes < 0)
+			throw new IllegalArgumentException("Pool budget must not be negative: " + bytes);
+		budget = bytes;
+		for (int i = CLASSES - 1; i >= 0 && pooledBytes > budget; i --)
+			while (!free.get(i).isEmpty() && pooledBytes > budget)
+				pooledBytes -= 4L * free.get(i).pop().length;
+	}
+
+	/** Drops every pooled array and resets the counts
+	 */
+	public static synchronized void clear()
+	{
+		for (ArrayDeque<int[]> arrays : free)
+			arrays.clear();
+		pooledBytes = 0;
+		takes = hits = gives = dropped = 0;
+	}
+
+	/** Get the memory used by the arrays waiting in the pool
+	 * @return The number of bytes
+	 */
+	public static synchronized long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	/** Get the fraction of take() calls (of poolable sizes) that were given
+	 *		a pooled array
+	 * @return The hit rate from 0 to 1 (0 if nothing was taken)
+	 */
+	public static synchronized double getHitRate()
+	{
+		return takes == 0 ? 0 : (double) hits / takes;
+	}
+
+	/** Get the counts as one line
+	 * @return The takes, hits, gives and drops
+	 */
+	public static synchronized String getStats()
+	{
+		return String.format(Locale.ROOT, "raster pool: %d takes, %d hits (%.0f%%), %d given back, %d dropped, %d KB pooled",
+				takes, hits, 100 * getHitRate(), gives, dropped, pooledBytes >> 10);
+	}
+
+	/** Get the length of the arrays in a size class
+	 * @param index The size class
+	 * @return (4 + index % 4) * 2^(index / 4)
+	 */
+	private static int getClassSize(int index)
+	{
+		return (int) Math.min(Integer.MAX_VALUE, (long) (4 + index % 4) << (index / 4));
+	}
+
+	/** Get the smallest size class that holds a length
+	 * @param length The length (at least 4)
+	 * @return The size class
+	 */
+	private static int getClassAtLeast(int length)
+	{
+		int index = getClassAtMost(length);
+		return getClassSize(index) < length ? index + 1 : index;
+	}
+
+	/** Get the largest size class that fits in a length
+	 * @param length The length (at least 4)
+	 * @return The size class
+	 */
+	private static int getClassAtMost(int length)
+	{
+		int shift = 31 - Integer.numberOfLeadingZeros(length) - 2;
+		return shift * 4 + (length >> shift) - 4;
+	}
+}
@@ -0,0 +1,157 @@
+
+/** Runs work on a raster in parallel by splitting it into bands of rows.
+ * Each band is small enough to stay in the cache (about BAND_PIXELS pixels)
+ * and the bands are spread over a fork/join pool. A task only ever writes
+ * to the rows of its own band, so the result is the same as running all the
+ * rows on one thread. Neighbourhood effects (e.g. sharpen) read the rows
+ * above and below their band (the "halo") from a source raster that no task
+ * writes to, so the band edges need no special handling.
+ * While PictureMetrics is on, the memory the pool threads allocate for the
+ * bands is added to the calling thread's total, so an effect's allocations
+ * are measured however many threads it ran on.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RasterScheduler
+{
+	// Roughly how many pixels (4 bytes each) go in one band: 64K pixels = 256KB
+	final public static int BAND_PIXELS = 1 << 16;
+
+	// The number of threads used, 1 means everything runs on the calling thread.
+	// Can be set on the command line with -Dpicture.parallelism=n
+	private static volatile int parallelism = Math.max(1, Integer.getInteger(
+			"picture.parallelism", Runtime.getRuntime().availableProcessors()));
+	// The pool for the current parallelism, created the first time it is
+	// needed (volatile so effects on any thread see a new one at once)
+	private static volatile ForkJoinPool pool;
+
+	/** The work to do on one band of rows
+	 */
+	public interface BandTask
+	{
+		/** Processes the rows from startRow (inclusive) to endRow (exclusive)
+		 * @param startRow The first row of the band
+		 * @param endRow One past the last row of the band
+		 */
+		void run(int startRow, int endRow);
+	}
+
+	/** Changes the number of threads used by all effects. Effects that are
+	 *		already running finish on the pool they started with; it is not
+	 *		shut down (an effect on another thread may be just about to use it),
+	 *		its threads are daemons that end by themselves once it is idle.
+	 * @param threads The number of threads (1 runs everything sequentially)
+	 */
+	public static synchronized void setParallelism(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + threads);
+
+		if (threads != parallelism)
+			pool = null;				// The next effect makes a new one
+		parallelism = threads;
+	}
+
+	/** Get the number of threads used by all effects
+	 * @return The number of threads
+	 */
+	public static int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/** Get the pool that runs the bands, creating it the first time
+	 * @return The pool, or null if everything should run sequentially
+	 */
+	private static ForkJoinPool getPool()
+	{
+		ForkJoinPool p = pool;
+		if (p != null)
+			return p;
+		synchronized (RasterScheduler.class)
+		{
+			if (parallelism == 1)
+				return null;
+			if (pool == null)
+				pool = new ForkJoinPool(parallelism);
+			return pool;
+		}
+	}
+
+	/** Runs a task on every row from 0 to rows, split into bands
+	 * @param rows The number of rows to process
+	 * @param rowLength The number of pixels in a row (used to size the bands)
+	 * @param task The work to do on each band
+	 */
+	public static void forEachBand(int rows, int rowLength, BandTask task)
+	{
+		int bandRows = Math.max(1, BAND_PIXELS / Math.max(1, rowLength));
+		ForkJoinPool p = getPool();
+
+		// Small images (or one thread) are not worth splitting up
+		if (p == null || rows <= bandRows)
+			task.run(0, rows);
+		else if (!PictureMetrics.isEnabled() || PictureMetrics.getAllocatedBytes() < 0)
+			p.invoke(new Band(task, 0, rows, bandRows, null, null));
+		else
+		{
+			// Count what the pool threads allocate towards this thread
+			AtomicLong workerBytes = new AtomicLong();
+			p.invoke(new Band(task, 0, rows, bandRows, Thread.currentThread(), workerBytes));
+			PictureMetrics.addWorkerBytes(workerBytes.get());
+		}
+	}
+
+	/** Splits a range of rows in half until it is one band, then runs the task
+	 */
+	private static class Band extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private BandTask task;
+		private int startRow;
+		private int endRow;
+		private int bandRows;
+		// The thread that called forEachBand() and the memory allocated by
+		// the other threads (both null if it is not being measured)
+		private Thread caller;
+		private AtomicLong workerBytes;
+
+		public Band(BandTask task, int startRow, int endRow, int bandRows,
+				Thread caller, AtomicLong workerBytes)
+		{
+			this.task = task;
+			this.startRow = startRow;
+			this.endRow = endRow;
+			this.bandRows = bandRows;
+			this.caller = caller;
+			this.workerBytes = workerBytes;
+		}
+
+		protected void compute()
+		{
+			if (endRow - startRow <= bandRows)
+			{
+				// The caller's own allocations are already counted
+				if (workerBytes == null || Thread.currentThread() == caller)
+					task.run(startRow, endRow);
+				else
+				{
+					long before = PictureMetrics.getAllocatedBytes();
+					task.run(startRow, endRow);
+					workerBytes.addAndGet(PictureMetrics.getAllocatedBytes() - before);
+				}
+				return;
+			}
+
+			int middle = startRow + (endRow - startRow) / 2;
+			invokeAll(new Band(task, startRow, middle, bandRows, caller, workerBytes),
+					new Band(task, middle, endRow, bandRows, caller, workerBytes));
+		}
+	}
+}
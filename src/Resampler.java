@@ -0,0 +1,365 @@
+
+/** Resizes a raster to any width and height with a choice of filters. The
+ * rows are resized first and then the columns (a separable filter), each
+ * in parallel bands. For every new column (or row) the old pixels it uses
+ * and their weights are worked out once, as fixed point numbers out of
+ * 16384, so the passes themselves only do integer multiply and adds.
+ * Shrinking by a lot would need a very wide filter, so while the image is
+ * still more than 4 times too big it is first halved with 2x2 averages
+ * (a mip chain), and the filter only has to do the last step. The
+ * halved copies and the rows between the two passes use the RasterPool.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+public class Resampler
+{
+	/** How the old pixels near each new pixel are weighted
+	 */
+	public enum Filter
+	{
+		// The average of the old pixels the new pixel covers (nearest
+		// neighbour when enlarging)
+		BOX(0.5)
+		{
+			double weight(double x)
+			{
+				return x >= -0.5 && x < 0.5 ? 1 : 0;
+			}
+		},
+		// Straight line between the 2 nearest pixels
+		BILINEAR(1)
+		{
+			double weight(double x)
+			{
+				x = Math.abs(x);
+				return x < 1 ? 1 - x : 0;
+			}
+		},
+		// Catmull-Rom cubic, sharper than bilinear
+		BICUBIC(2)
+		{
+			double weight(double x)
+			{
+				x = Math.abs(x);
+				if (x < 1)
+					return (1.5 * x - 2.5) * x * x + 1;
+				if (x < 2)
+					return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+				return 0;
+			}
+		},
+		// Lanczos with 3 lobes, the sharpest (can ring a little at hard edges)
+		LANCZOS(3)
+		{
+			double weight(double x)
+			{
+				if (x == 0)
+					return 1;
+				if (x <= -3 || x >= 3)
+					return 0;
+				double px = Math.PI * x;
+				return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+			}
+		};
+
+		private double radius;
+
+		private Filter(double radius)
+		{
+			this.radius = radius;
+		}
+
+		/** Get how far from its centre the filter reaches
+		 * @return The radius in pixels (of the larger image)
+		 */
+		public double getRadius()
+		{
+			return radius;
+		}
+
+		/** Get the weight of a pixel at a distance from the centre
+		 * @param x The distance in pixels
+		 * @return The weight (not normalised)
+		 */
+		abstract double weight(double x);
+	}
+
+	// The weights are fixed point numbers out of 2^WEIGHT_BITS
+	final private static int WEIGHT_BITS = 14;
+	final private static int ONE = 1 << WEIGHT_BITS;
+
+	/** The old pixels used by each new pixel along one direction
+	 */
+	private static class Weights
+	{
+		int taps;			// The number of old pixels for each new pixel
+		int[] starts;		// The first old pixel of each new pixel
+		int[] weights;		// taps weights for each new pixel, adding up to ONE
+	}
+
+	/** Makes a resized copy of a raster
+	 * @param src The raster of 32 bit ARGB colours (not changed)
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows in src
+	 * @param newWidth The width to resize to
+	 * @param newHeight The height to resize to
+	 * @param filter The filter to use
+	 * @return The new raster, with a stride of newWidth (from the RasterPool,
+	 *		so it may be longer than newWidth * newHeight)
+	 */
+	public static int[] resize(int[] src, int width, int height, int stride,
+			int newWidth, int newHeight, Filter filter)
+	{
+		if (newWidth <= 0 || newHeight <= 0)
+			throw new IllegalArgumentException("Size must be positive: " + newWidth + "x" + newHeight);
+
+		// Halve while the image is still more than 4 times too big (the
+		// caller's raster is never given to the pool, only the halved copies)
+		int [] halved = null;
+		while (width >= newWidth * 4 && height >= newHeight * 4)
+		{
+			int [] next = halve(src, width, height, stride, RasterPool.take(((width + 1) / 2) * ((height + 1) / 2)));
+			RasterPool.give(halved);
+			src = halved = next;
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			stride = width;
+		}
+
+		int [] dst = RasterPool.take(newWidth * newHeight);
+		if (width == newWidth && height == newHeight)
+		{
+			for (int row = 0; row < height; row ++)
+				System.arraycopy(src, row * stride, dst, row * width, width);
+			RasterPool.give(halved);
+			return dst;
+		}
+
+		// Rows first (the result has the new width), then the columns
+		int [] rows = null;
+		if (newWidth != width)
+		{
+			rows = RasterPool.take(newWidth * height);
+			resizeRows(src, height, stride, rows, newWidth, getWeights(width, newWidth, filter));
+		}
+		resizeColumns(rows != null ? rows : src, newWidth, rows != null ? newWidth : stride, height,
+				dst, newHeight, getWeights(height, newHeight, filter));
+		RasterPool.give(rows);
+		RasterPool.give(halved);
+		return dst;
+	}
+
+	/** Halves a raster (rounding up, the last row or column of an odd size
+	 *		is averaged with itself) by averaging each 2x2 block. The Alpha
+	 *		values are averaged as well.
+	 * @param src The raster (not changed)
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows in src
+	 * @param dst The raster to write to, with no gaps between rows (at least
+	 *		((width + 1) / 2) * ((height + 1) / 2) long)
+	 * @return dst
+	 */
+	public static int[] halve(final int[] src, final int width, final int height, final int stride,
+			final int[] dst)
+	{
+		final int newWidth = (width + 1) / 2;
+		final int newHeight = (height + 1) / 2;
+		RasterScheduler.forEachBand(newHeight, newWidth * 4, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				for (int y = startRow; y < endRow; y ++)
+				{
+					int top = 2 * y * stride;
+					int bottom = Math.min(2 * y + 1, height - 1) * stride;
+					for (int x = 0; x < newWidth; x ++)
+					{
+						int left = 2 * x;
+						int right = Math.min(2 * x + 1, width - 1);
+						int c1 = src[top + left], c2 = src[top + right];
+						int c3 = src[bottom + left], c4 = src[bottom + right];
+
+						// Two channels in each int, every total fits in 16 bits
+						int alphaGreen = (c1 >>> 8 & 0xFF00FF) + (c2 >>> 8 & 0xFF00FF)
+								+ (c3 >>> 8 & 0xFF00FF) + (c4 >>> 8 & 0xFF00FF);
+						int redBlue = (c1 & 0xFF00FF) + (c2 & 0xFF00FF) + (c3 & 0xFF00FF) + (c4 & 0xFF00FF);
+						dst[y * newWidth + x] = (alphaGreen >> 2 & 0xFF00FF) << 8 | redBlue >> 2 & 0xFF00FF;
+					}
+				}
+			}
+		});
+		return dst;
+	}
+
+	/** Works out which old pixels and weights make up each new pixel along
+	 *		one direction
+	 * @param size The old number of pixels
+	 * @param newSize The new number of pixels
+	 * @param filter The filter
+	 * @return The weights
+	 */
+	private static Weights getWeights(int size, int newSize, Filter filter)
+	{
+		// When shrinking, the filter is stretched to cover all the old pixels
+		double scale = (double) newSize / size;
+		double stretch = scale < 1 ? 1 / scale : 1;
+		double support = filter.getRadius() * stretch;
+
+		Weights table = new Weights();
+		table.taps = Math.min(size, (int) Math.ceil(support * 2) + 1);
+		table.starts = new int[newSize];
+		table.weights = new int[newSize * table.taps];
+		double [] weights = new double[table.taps];
+
+		for (int i = 0; i < newSize; i ++)
+		{
+			// The centre of the new pixel in old pixel coordinates
+			double centre = (i + 0.5) / scale;
+			int first = (int) Math.floor(centre - support);
+			int last = (int) Math.ceil(centre + support);
+
+			// Pixels outside the image use the nearest edge pixel
+			int start = Math.max(0, Math.min(first, size - table.taps));
+			java.util.Arrays.fill(weights, 0);
+			double total = 0;
+			for (int j = first; j <= last; j ++)
+			{
+				double w = filter.weight((j + 0.5 - centre) / stretch);
+				if (w == 0)
+					continue;
+				int k = Math.max(0, Math.min(size - 1, j)) - start;
+				if (k < 0 || k >= table.taps)
+					continue;
+				weights[k] += w;
+				total += w;
+			}
+			if (total == 0)
+			{
+				// Too small to reach a pixel centre, use the nearest pixel
+				weights[Math.max(0, Math.min(size - 1, (int) centre)) - start] = 1;
+				total = 1;
+			}
+
+			// Fixed point weights that add up to exactly ONE
+			int sum = 0;
+			int biggest = 0;
+			for (int k = 0; k < table.taps; k ++)
+			{
+				int w = (int) Math.round(weights[k] / total * ONE);
+				table.weights[i * table.taps + k] = w;
+				sum += w;
+				if (w > table.weights[i * table.taps + biggest])
+					biggest = k;
+			}
+			table.weights[i * table.taps + biggest] += ONE - sum;
+			table.starts[i] = start;
+		}
+		return table;
+	}
+
+	/** Resizes every row of a raster (the height stays the same)
+	 * @param src The raster to read from
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows in src
+	 * @param dst The raster to write to
+	 * @param newWidth The new width (and the stride of dst)
+	 * @param table The weights of each new column
+	 */
+	private static void resizeRows(final int[] src, int height, final int stride,
+			final int[] dst, final int newWidth, final Weights table)
+	{
+		RasterScheduler.forEachBand(height, newWidth * table.taps, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				int taps = table.taps;
+				for (int y = startRow; y < endRow; y ++)
+				{
+					int row = y * stride;
+					for (int x = 0; x < newWidth; x ++)
+					{
+						int start = row + table.starts[x];
+						int w = x * taps;
+						int alpha = 0, red = 0, green = 0, blue = 0;
+						for (int t = 0; t < taps; t ++)
+						{
+							int colour = src[start + t];
+							int weight = table.weights[w + t];
+							alpha += (colour >>> 24) * weight;
+							red += (colour >> 16 & 0xFF) * weight;
+							green += (colour >> 8 & 0xFF) * weight;
+							blue += (colour & 0xFF) * weight;
+						}
+						dst[y * newWidth + x] = pack(alpha, red, green, blue);
+					}
+				}
+			}
+		});
+	}
+
+	/** Resizes every column of a raster (the width stays the same)
+	 * @param src The raster to read from
+	 * @param width The number of pixels in a row
+	 * @param stride The distance between the start of two rows in src
+	 * @param height The old number of rows
+	 * @param dst The raster to write to (width is its stride)
+	 * @param newHeight The new number of rows
+	 * @param table The weights of each new row
+	 */
+	private static void resizeColumns(final int[] src, final int width, final int stride, int height,
+			final int[] dst, int newHeight, final Weights table)
+	{
+		RasterScheduler.forEachBand(newHeight, width * table.taps, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				int taps = table.taps;
+				int [] alpha = new int[width];
+				int [] red = new int[width];
+				int [] green = new int[width];
+				int [] blue = new int[width];
+				for (int y = startRow; y < endRow; y ++)
+				{
+					// Add up whole old rows at a time (reads memory in order)
+					java.util.Arrays.fill(alpha, 0);
+					java.util.Arrays.fill(red, 0);
+					java.util.Arrays.fill(green, 0);
+					java.util.Arrays.fill(blue, 0);
+					for (int t = 0; t < taps; t ++)
+					{
+						int weight = table.weights[y * taps + t];
+						if (weight == 0)
+							continue;
+						int row = (table.starts[y] + t) * stride;
+						for (int x = 0; x < width; x ++)
+						{
+							int colour = src[row + x];
+							alpha[x] += (colour >>> 24) * weight;
+							red[x] += (colour >> 16 & 0xFF) * weight;
+							green[x] += (colour >> 8 & 0xFF) * weight;
+							blue[x] += (colour & 0xFF) * weight;
+						}
+					}
+					for (int x = 0; x < width; x ++)
+						dst[y * width + x] = pack(alpha[x], red[x], green[x], blue[x]);
+				}
+			}
+		});
+	}
+
+	/** Rounds and limits weighted totals and packs them into a colour
+	 * @param alpha The weighted total of the Alpha values
+	 * @param red The weighted total of the Red values
+	 * @param green The weighted total of the Green values
+	 * @param blue The weighted total of the Blue values
+	 * @return The 32 bit ARGB colour
+	 */
+	private static int pack(int alpha, int red, int green, int blue)
+	{
+		int half = ONE / 2;
+		return Pixel.clamp((alpha + half) >> WEIGHT_BITS) << 24
+				| Pixel.clamp((red + half) >> WEIGHT_BITS) << 16
+				| Pixel.clamp((green + half) >> WEIGHT_BITS) << 8
+				| Pixel.clamp((blue + half) >> WEIGHT_BITS);
+	}
+}
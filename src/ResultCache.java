@@ -0,0 +1,398 @@
+
+/** Remembers the results of applying a list of effects, so the same image
+ * with the same effects (e.g. a photo that is uploaded again) is never
+ * processed twice. The key is the SHA-256 digest of the colours of the input
+ * image, its size and the names of the effects in order. A cryptographic
+ * digest is used because a hit is trusted without comparing the colours:
+ * two different images with the same key would silently get each other's
+ * result, and for a fast non-cryptographic hash such pairs are easy to make.
+ *		- Results are kept in memory, and the least recently used ones are
+ *		  forgotten once they use more than the memory budget
+ *		- If a directory is given, every result is also saved there as a
+ *		  raster file (see MappedRaster), so it is still there for the next
+ *		  run or after it has been forgotten from memory
+ * Only images with exactly the same colours match. The number of hits and
+ * misses is counted so that the cache can be tuned.
+ * The budget (in MB) can be set on the command line with
+ * -Dpicture.cacheBudget=n
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResultCache
+{
+	// Rough size of an entry apart from its pixels (the key, map entry and arrays)
+	final private static int ENTRY_OVERHEAD = 128;
+
+	private long budget;
+	private long used;
+	private File dir;
+	// In order of use, the least recently used first
+	private LinkedHashMap<Key, Entry> entries;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong diskHits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	/** What a result is stored under
+	 */
+	private static class Key
+	{
+		private byte[] digest;
+		private int width;
+		private int height;
+		private String recipe;
+
+		Key(byte[] digest, int width, int height, String recipe)
+		{
+			this.digest = digest;
+			this.width = width;
+			this.height = height;
+			this.recipe = recipe;
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Key))
+				return false;
+			Key key = (Key) other;
+			return Arrays.equals(digest, key.digest) && width == key.width && height == key.height
+					&& recipe.equals(key.recipe);
+		}
+
+		public int hashCode()
+		{
+			return Arrays.hashCode(digest);
+		}
+
+		/** Get the name of the raster file for this key
+		 * @return e.g. 0123...cdef-640x480-shrink,sharpen.argb (with all 64
+		 *		hex digits of the digest)
+		 */
+		String getFileName()
+		{
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest)
+				name.append(String.format("%02x", b & 0xFF));
+			return String.format("%s-%dx%d-%s.%s", name, width, height, recipe, MappedRaster.EXTENSION);
+		}
+	}
+
+	/** One stored result (never changed once it is stored)
+	 */
+	private static class Entry
+	{
+		private int[] pixels;
+		private int width;
+		private int height;
+
+		Entry(int[] pixels, int width, int height)
+		{
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+		}
+
+		long getSize()
+		{
+			return 4L * pixels.length + ENTRY_OVERHEAD;
+		}
+	}
+
+	/** Creates a cache in memory only, with the budget from
+	 *		-Dpicture.cacheBudget (in MB, 256 if it is not set)
+	 */
+	public ResultCache()
+	{
+		this(Long.getLong("picture.cacheBudget", 256) << 20, null);
+	}
+
+	/** Creates a cache
+	 * @param budget The most memory (in bytes) that the results kept in memory can use
+	 * @param dir The directory to also save the results in, or null to only
+	 *		keep them in memory
+	 * @throws IllegalArgumentException if the directory cannot be created
+	 */
+	public ResultCache(long budget, File dir)
+	{
+		if (budget < 0)
+			throw new IllegalArgumentException("Cache budget must not be negative: " + budget);
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalArgumentException("Could not create cache directory: " + dir);
+		this.budget = budget;
+		this.dir = dir;
+		entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	}
+
+	/** Applies a list of effects to a copy of a picture, or gets the result
+	 *		from the cache if it has been done before
+	 * @param picture The picture (not changed)
+	 * @param ops The effects to apply, in order
+	 * @return A new Picture with the result (changing it does not change the cache)
+	 */
+	public Picture apply(Picture picture, List<PictureOperation> ops)
+	{
+		Key key = new Key(digest(picture), picture.getWidth(), picture.getHeight(), getRecipe(ops));
+		Entry entry = get(key);
+		if (entry != null)
+		{
+			hits.incrementAndGet();
+			return toPicture(entry);
+		}
+
+		entry = load(key);
+		if (entry != null)
+		{
+			diskHits.incrementAndGet();
+			put(key, entry);
+			return toPicture(entry);
+		}
+
+		misses.incrementAndGet();
+		Picture result = new Picture(picture);
+		PictureOperation.applyAll(result, ops);
+
+		// The result is returned, so the cache keeps its own copy
+		int [] copy = new int[result.getWidth() * result.getHeight()];
+		for (int row = 0; row < result.getHeight(); row ++)
+			System.arraycopy(result.getRaster(), row * result.getStride(), copy,
+					row * result.getWidth(), result.getWidth());
+		entry = new Entry(copy, result.getWidth(), result.getHeight());
+		put(key, entry);
+		save(key, entry);
+		return result;
+	}
+
+	/** Makes the SHA-256 digest of the colours of a picture (each colour as
+	 *		4 bytes, row by row, so the stride does not matter)
+	 * @param picture The picture
+	 * @return The 32 byte digest
+	 */
+	public static byte[] digest(Picture picture)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException exp)
+		{
+			// Every Java platform has to support SHA-256
+			throw new IllegalStateException("SHA-256 is not available", exp);
+		}
+
+		int [] pixels = picture.getRaster();
+		int width = picture.getWidth();
+		int stride = picture.getStride();
+		ByteBuffer row = ByteBuffer.allocate(4 * width);
+		for (int y = 0; y < picture.getHeight(); y ++)
+		{
+			row.clear();
+			row.asIntBuffer().put(pixels, y * stride, width);
+			digest.update(row.array(), 0, 4 * width);
+		}
+		return digest.digest();
+	}
+
+	/** Get the number of results found in memory
+	 * @return The number of hits
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/** Get the number of results found in the cache directory (not in memory)
+	 * @return The number of hits
+	 */
+	public long getDiskHits()
+	{
+		return diskHits.get();
+	}
+
+	/** Get the number of results that had to be worked out
+	 * @return The number of misses
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/** Get the number of results forgotten from memory to stay in the budget
+	 * @return The number of evictions
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/** Get the memory used by the results kept in memory
+	 * @return The (rough) number of bytes
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return used;
+	}
+
+	/** Get the number of results kept in memory
+	 * @return The number of results
+	 */
+	public synchronized int getSize()
+	{
+		return entries.size();
+	}
+
+	/** Forgets all the results kept in memory (the directory is not changed)
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		used = 0;
+	}
+
+	public String toString()
+	{
+		long lookups = getHits() + getDiskHits() + getMisses();
+		return String.format("cache: %d hits, %d disk hits, %d misses (%.0f%% hit), %d evictions, %d results in %d KB",
+				getHits(), getDiskHits(), getMisses(),
+				lookups == 0 ? 0.0 : 100.0 * (getHits() + getDiskHits()) / lookups,
+				getEvictions(), getSize(), getUsedBytes() >> 10);
+	}
+
+	/** Gets the names of a list of effects in order
+	 * @param ops The effects
+	 * @return The names separated by commas
+	 */
+	private static String getRecipe(List<PictureOperation> ops)
+	{
+		StringBuilder recipe = new StringBuilder();
+		for (PictureOperation op : ops)
+		{
+			if (recipe.length() > 0)
+				recipe.append(',');
+			recipe.append(op.getName());
+		}
+		return recipe.toString();
+	}
+
+	/** Makes a new Picture with a copy of a stored result
+	 * @param entry The result
+	 * @return The new Picture
+	 */
+	private static Picture toPicture(Entry entry)
+	{
+		return new Picture(entry.pixels.clone(), entry.width, entry.height, entry.width, null);
+	}
+
+	/** Looks for a result in memory
+	 * @param key The key
+	 * @return The result, or null if it is not in memory
+	 */
+	private synchronized Entry get(Key key)
+	{
+		return entries.get(key);
+	}
+
+	/** Keeps a result in memory and forgets the least recently used results
+	 *		if over the budget
+	 * @param key The key
+	 * @param entry The result
+	 */
+	private synchronized void put(Key key, Entry entry)
+	{
+		if (entry.getSize() > budget)
+			return;
+		Entry old = entries.put(key, entry);
+		if (old != null)
+			used -= old.getSize();
+		used += entry.getSize();
+
+		Iterator<Entry> it = entries.values().iterator();
+		while (used > budget && it.hasNext())
+		{
+			used -= it.next().getSize();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/** Looks for a result in the cache directory
+	 * @param key The key
+	 * @return The result, or null if there is no directory or it is not there
+	 */
+	private Entry load(Key key)
+	{
+		if (dir == null)
+			return null;
+		File file = new File(dir, key.getFileName());
+		if (!file.isFile())
+			return null;
+		try
+		{
+			MappedRaster raster = MappedRaster.open(file, false);
+			try
+			{
+				int [] pixels = new int[raster.getWidth() * raster.getHeight()];
+				raster.readRows(0, pixels, 0, raster.getWidth(), raster.getHeight());
+				return new Entry(pixels, raster.getWidth(), raster.getHeight());
+			}
+			finally
+			{
+				raster.close();
+			}
+		}
+		catch (IOException exp)
+		{
+			// A damaged file is treated as a miss (and replaced)
+			return null;
+		}
+	}
+
+	/** Saves a result in the cache directory. It is written to a temporary
+	 *		file first, so other threads (or runs) never see half a result.
+	 * @param key The key
+	 * @param entry The result
+	 */
+	private void save(Key key, Entry entry)
+	{
+		if (dir == null)
+			return;
+		File temp = null;
+		try
+		{
+			temp = File.createTempFile("result", ".tmp", dir);
+			MappedRaster raster = MappedRaster.create(temp, entry.width, entry.height);
+			try
+			{
+				raster.writeRows(0, entry.pixels, 0, entry.width, entry.height);
+			}
+			finally
+			{
+				raster.close();
+			}
+			Files.move(temp.toPath(), new File(dir, key.getFileName()).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException exp)
+		{
+			// The cache is only an optimisation, the result is still returned
+			System.err.println("Could not save result to cache: " + exp.getMessage());
+			if (temp != null)
+				temp.delete();
+		}
+	}
+}
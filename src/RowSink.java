@@ -0,0 +1,33 @@
+
+/** Takes the rows of an image from top to bottom, a few at a time, e.g. to
+ * encode them to a file without holding the whole image in memory
+ * (see StripProcessor).
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.IOException;
+
+public interface RowSink
+{
+	/** Called once before any rows are written
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows that will be written
+	 * @throws IOException if the image cannot be started
+	 */
+	void begin(int width, int height) throws IOException;
+
+	/** Writes the next rows of the image
+	 * @param pixels The 32 bit ARGB colours of the rows
+	 * @param offset The index in pixels of the first row
+	 * @param stride The distance between the start of two rows in pixels
+	 * @param count The number of rows to write
+	 * @throws IOException if the rows cannot be written
+	 */
+	void writeRows(int[] pixels, int offset, int stride, int count) throws IOException;
+
+	/** Finishes the image after the last row and closes it
+	 * @throws IOException if the image cannot be finished
+	 */
+	void close() throws IOException;
+}
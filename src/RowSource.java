@@ -0,0 +1,36 @@
+
+/** Gives the rows of an image from top to bottom, a few at a time, so that
+ * an image can be processed without ever holding all of it in memory
+ * (see StripProcessor).
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.IOException;
+
+public interface RowSource
+{
+	/** Get the width of the image
+	 * @return The number of pixels in a row
+	 */
+	int getWidth();
+
+	/** Get the height of the image
+	 * @return The number of rows
+	 */
+	int getHeight();
+
+	/** Reads the next rows of the image as 32 bit ARGB colours
+	 * @param pixels The array to store the rows in
+	 * @param offset The index in pixels of the first row
+	 * @param stride The distance between the start of two rows in pixels
+	 * @param count The number of rows to read
+	 * @throws IOException if the rows cannot be read
+	 */
+	void readRows(int[] pixels, int offset, int stride, int count) throws IOException;
+
+	/** Closes the image file
+	 * @throws IOException if the file cannot be closed
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,378 @@
+
+/** Blurs a raster with a kernel that can be split into a horizontal pass and
+ * a vertical pass (e.g. a box or a Gaussian). Both passes work in place: the
+ * horizontal pass goes row by row, the vertical pass goes down strips of
+ * columns and remembers the few original rows it still needs, so the image
+ * never has to be transposed or copied.
+ * Pixels near the edges are averaged with only the neighbours that are inside
+ * the image (the weights are re-normalised). Alpha is always set to 255.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.Arrays;
+
+public class SeparableFilter
+{
+	// The number of columns handled together in the vertical pass, wide
+	// enough that every row of the strip is a few whole cache lines
+	final public static int STRIP_WIDTH = 64;
+
+	// The 1D weights (odd length) used for both passes
+	private int[] weights;
+	private int radius;
+
+	/** Creates a new filter that uses the same 1D weights for both passes
+	 * @param weights The weights, centred on the middle element (must have
+	 *		an odd length, no negative weights and a positive middle weight
+	 *		so the weights used near the edges never add up to 0)
+	 */
+	public SeparableFilter(int[] weights)
+	{
+		if (weights.length % 2 == 0)
+			throw new IllegalArgumentException("Weights must have an odd length: " + weights.length);
+
+		this.weights = weights.clone();
+		radius = weights.length / 2;
+		for (int w : weights)
+			if (w < 0)
+				throw new IllegalArgumentException("Weights must not be negative: " + w);
+		if (weights[radius] <= 0)
+			throw new IllegalArgumentException("The middle weight must be positive");
+	}
+
+	/** Get the number of pixels in each direction that this filter uses
+	 * @return The radius of the filter
+	 */
+	public int getRadius()
+	{
+		return radius;
+	}
+
+	/** Applies both passes of this filter to a raster (in place)
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 */
+	public void apply(int[] pixels, int width, int height, int stride)
+	{
+		applyHorizontal(pixels, width, height, stride);
+		applyVertical(pixels, width, height, stride);
+	}
+
+	/** Applies this filter along the rows of a raster (in place)
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 */
+	public void applyHorizontal(final int[] pixels, final int width, int height, final int stride)
+	{
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				// The original colours of the row being filtered
+				int [] row = new int [width];
+				for (int y = startRow; y < endRow; y ++)
+				{
+					System.arraycopy(pixels, y * stride, row, 0, width);
+					for (int x = 0; x < width; x ++)
+					{
+						// Only use the neighbours inside the row
+						int start = Math.max(-radius, -x);
+						int end = Math.min(radius, width - 1 - x);
+						int red = 0, green = 0, blue = 0;
+						int weight = 0;
+						for (int k = start; k <= end; k ++)
+						{
+							int w = weights[k + radius];
+							int colour = row[x + k];
+							red += Pixel.red(colour) * w;
+							green += Pixel.green(colour) * w;
+							blue += Pixel.blue(colour) * w;
+							weight += w;
+						}
+						pixels[y * stride + x] = Pixel.getAverageValue(red, green, blue, weight);
+					}
+				}
+			}
+		});
+	}
+
+	/** Applies this filter down the columns of a raster (in place)
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 */
+	public void applyVertical(final int[] pixels, final int width, final int height, final int stride)
+	{
+		forEachStrip(width, height, new RasterScheduler.BandTask() {
+			public void run(int x0, int x1)
+			{
+				int stripWidth = x1 - x0;
+				// The original colours of the rows above the current row
+				int [] above = new int [Math.max(1, radius) * stripWidth];
+				int [] red = new int [stripWidth];
+				int [] green = new int [stripWidth];
+				int [] blue = new int [stripWidth];
+
+				for (int y = 0; y < height; y ++)
+				{
+					Arrays.fill(red, 0);
+					Arrays.fill(green, 0);
+					Arrays.fill(blue, 0);
+					int weight = 0;
+
+					// Only use the rows inside the image
+					for (int k = Math.max(-radius, -y); k <= Math.min(radius, height - 1 - y); k ++)
+					{
+						int w = weights[k + radius];
+						int [] source = pixels;
+						int offset = (y + k) * stride + x0;
+						if (k < 0)
+						{
+							// Already overwritten, so use the saved copy
+							source = above;
+							offset = ((y + k) % radius) * stripWidth;
+						}
+						for (int i = 0; i < stripWidth; i ++)
+						{
+							int colour = source[offset + i];
+							red[i] += Pixel.red(colour) * w;
+							green[i] += Pixel.green(colour) * w;
+							blue[i] += Pixel.blue(colour) * w;
+						}
+						weight += w;
+					}
+
+					// Save this row before it is overwritten
+					int row = y * stride + x0;
+					if (radius > 0)
+						System.arraycopy(pixels, row, above, (y % radius) * stripWidth, stripWidth);
+					for (int i = 0; i < stripWidth; i ++)
+						pixels[row + i] = Pixel.getAverageValue(red[i], green[i], blue[i], weight);
+				}
+			}
+		});
+	}
+
+	/*		Box blur with running sums (constant time for any radius)		*/
+
+	/** Replaces every pixel with the average of the (2 * radius + 1) square
+	 *		of pixels around it. Takes the same time for any radius.
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param radius The number of pixels in each direction to include
+	 * @throws IllegalArgumentException if the radius is negative
+	 */
+	public static void boxBlur(int[] pixels, int width, int height, int stride, int radius)
+	{
+		boxHorizontal(pixels, width, height, stride, radius);
+		boxVertical(pixels, width, height, stride, radius);
+	}
+
+	/** Replaces every pixel with the average of the (2 * radius + 1) pixels
+	 *		around it in the same row
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param radius The number of pixels in each direction to include
+	 * @throws IllegalArgumentException if the radius is negative
+	 */
+	public static void boxHorizontal(final int[] pixels, final int width, int height,
+			final int stride, final int radius)
+	{
+		checkRadius(radius);
+		RasterScheduler.forEachBand(height, width, new RasterScheduler.BandTask() {
+			public void run(int startRow, int endRow)
+			{
+				// The original colours of the row being blurred
+				int [] row = new int [width];
+				for (int y = startRow; y < endRow; y ++)
+				{
+					System.arraycopy(pixels, y * stride, row, 0, width);
+
+					// Start with the window around x = 0
+					int red = 0, green = 0, blue = 0;
+					int end = Math.min(radius, width - 1);
+					for (int x = 0; x <= end; x ++)
+					{
+						red += Pixel.red(row[x]);
+						green += Pixel.green(row[x]);
+						blue += Pixel.blue(row[x]);
+					}
+					int count = end + 1;
+
+					for (int x = 0; x < width; x ++)
+					{
+						pixels[y * stride + x] = Pixel.getAverageValue(red, green, blue, count);
+
+						// Slide the window one pixel to the right
+						if (x + radius + 1 < width)
+						{
+							int colour = row[x + radius + 1];
+							red += Pixel.red(colour);
+							green += Pixel.green(colour);
+							blue += Pixel.blue(colour);
+							count ++;
+						}
+						if (x - radius >= 0)
+						{
+							int colour = row[x - radius];
+							red -= Pixel.red(colour);
+							green -= Pixel.green(colour);
+							blue -= Pixel.blue(colour);
+							count --;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** Replaces every pixel with the average of the (2 * radius + 1) pixels
+	 *		around it in the same column
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param radius The number of pixels in each direction to include
+	 * @throws IllegalArgumentException if the radius is negative
+	 */
+	public static void boxVertical(final int[] pixels, int width, final int height,
+			final int stride, final int radius)
+	{
+		checkRadius(radius);
+		forEachStrip(width, height, new RasterScheduler.BandTask() {
+			public void run(int x0, int x1)
+			{
+				int stripWidth = x1 - x0;
+				// The original colours of the rows from (y - radius) to y
+				int [] saved = new int [(radius + 1) * stripWidth];
+				int [] red = new int [stripWidth];
+				int [] green = new int [stripWidth];
+				int [] blue = new int [stripWidth];
+
+				// Start with the window around y = 0
+				int end = Math.min(radius, height - 1);
+				for (int y = 0; y <= end; y ++)
+					add(pixels, y * stride + x0, red, green, blue, 1);
+				int count = end + 1;
+
+				for (int y = 0; y < height; y ++)
+				{
+					// Save this row before it is overwritten
+					int row = y * stride + x0;
+					System.arraycopy(pixels, row, saved, (y % (radius + 1)) * stripWidth, stripWidth);
+					for (int i = 0; i < stripWidth; i ++)
+						pixels[row + i] = Pixel.getAverageValue(red[i], green[i], blue[i], count);
+
+					// Slide the window one pixel down
+					if (y + radius + 1 < height)
+					{
+						add(pixels, (y + radius + 1) * stride + x0, red, green, blue, 1);
+						count ++;
+					}
+					if (y - radius >= 0)
+					{
+						add(saved, ((y - radius) % (radius + 1)) * stripWidth, red, green, blue, -1);
+						count --;
+					}
+				}
+			}
+		});
+	}
+
+	/** Approximates a Gaussian blur with 3 box blurs in a row
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param sigma The standard deviation of the Gaussian (in pixels)
+	 */
+	public static void gaussianBlur(int[] pixels, int width, int height, int stride, double sigma)
+	{
+		for (int radius : gaussianBoxRadii(sigma, 3))
+			boxBlur(pixels, width, height, stride, radius);
+	}
+
+	/** Get the radii of the box blurs that, applied one after another, are
+	 *		closest to a Gaussian blur (http://www.peterkovesi.com/papers/FastGaussianSmoothing.pdf)
+	 * @param sigma The standard deviation of the Gaussian (in pixels)
+	 * @param passes The number of box blurs
+	 * @return The radius of each box blur
+	 */
+	public static int[] gaussianBoxRadii(double sigma, int passes)
+	{
+		// Ideal width of the boxes, then the nearest odd widths below and above
+		double idealWidth = Math.sqrt(12 * sigma * sigma / passes + 1);
+		int lower = (int) Math.floor(idealWidth);
+		if (lower % 2 == 0)
+			lower --;
+		int upper = lower + 2;
+
+		// How many boxes should use the lower width
+		double idealCount = (12 * sigma * sigma - passes * lower * lower
+				- 4 * passes * lower - 3 * passes) / (-4 * lower - 4);
+		int count = (int) Math.round(idealCount);
+
+		int [] radii = new int [passes];
+		for (int i = 0; i < passes; i ++)
+			radii[i] = ((i < count ? lower : upper) - 1) / 2;
+		return radii;
+	}
+
+	/** Checks the radius of a box blur (a negative one would make the window
+	 *		empty and the averages divide by 0)
+	 * @param radius The number of pixels in each direction to include
+	 * @throws IllegalArgumentException if the radius is negative
+	 */
+	static void checkRadius(int radius)
+	{
+		if (radius < 0)
+			throw new IllegalArgumentException("Radius must not be negative: " + radius);
+	}
+
+	/** Adds (or subtracts) the RGB values of a strip of colours to the totals
+	 * @param source The array holding the colours
+	 * @param offset The index of the first colour
+	 * @param red The Red totals
+	 * @param green The Green totals
+	 * @param blue The Blue totals
+	 * @param sign 1 to add, -1 to subtract
+	 */
+	private static void add(int[] source, int offset, int[] red, int[] green, int[] blue, int sign)
+	{
+		for (int i = 0; i < red.length; i ++)
+		{
+			int colour = source[offset + i];
+			red[i] += Pixel.red(colour) * sign;
+			green[i] += Pixel.green(colour) * sign;
+			blue[i] += Pixel.blue(colour) * sign;
+		}
+	}
+
+	/** Splits the columns of a raster into strips of STRIP_WIDTH and runs
+	 *		the task on them in parallel. The task is given the first column
+	 *		(inclusive) and last column (exclusive) of each strip.
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param task The work to do on each strip
+	 */
+	private static void forEachStrip(final int width, int height, final RasterScheduler.BandTask task)
+	{
+		int strips = (width + STRIP_WIDTH - 1) / STRIP_WIDTH;
+		RasterScheduler.forEachBand(strips, STRIP_WIDTH * height, new RasterScheduler.BandTask() {
+			public void run(int startStrip, int endStrip)
+			{
+				for (int s = startStrip; s < endStrip; s ++)
+					task.run(s * STRIP_WIDTH, Math.min(width, (s + 1) * STRIP_WIDTH));
+			}
+		});
+	}
+}
@@ -0,0 +1,331 @@
+
+/** One bit for every pixel of an image, set if the pixel's colour is similar
+ * to a seed colour. floodFill() only looks at the bits: a run of similar
+ * pixels is found 64 pixels at a time and its bits are cleared as it is
+ * filled. The bits are worked out 64 pixels at a time (a tight loop with no
+ * branches for each way of measuring the difference) the first time the
+ * fill reaches them, so a big fill sweeps the image once and a small fill
+ * in a big photo does not pay for the whole image. Each row starts at a new
+ * long, and the bits past the end of a row are always 0, so runs stop at the
+ * edge by themselves.
+ * Once a fill is done the cleared bits still match the picture (the filled
+ * pixels are no longer similar, unless the fill colour itself is), so the
+ * Picture keeps the mask for the next fill of the same seed colour.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.Arrays;
+
+public class SimilarityMask
+{
+	// The tolerance floodFill has always used (see Picture.isSimilarcolour)
+	final public static int DEFAULT_TOLERANCE = 10;
+
+	// The smallest tolerance: similar colours must differ by less than it, so
+	// 0 would match nothing, not even the seed colour
+	final public static int MIN_TOLERANCE = 1;
+
+	// More than the largest difference any Metric can measure
+	final public static int MAX_TOLERANCE = 1024;
+
+	/** The ways the difference between two colours can be measured. Two
+	 *		colours are similar if the difference is less than the tolerance.
+	 */
+	public enum Metric
+	{
+		// The biggest difference of the Alpha, Red, Green and Blue values
+		MAX_CHANNEL
+		{
+			public boolean isSimilar(int c1, int c2, int tolerance)
+			{
+				return maxChannel(c1, c2, tolerance) != 0;
+			}
+		},
+		// The distance between the two colours as points in ARGB space
+		EUCLIDEAN
+		{
+			public boolean isSimilar(int c1, int c2, int tolerance)
+			{
+				return euclidean(c1, c2, tolerance * tolerance) != 0;
+			}
+		},
+		// The difference in brightness (weighted the same as blackAndWhite(),
+		// Alpha is ignored)
+		LUMINANCE
+		{
+			public boolean isSimilar(int c1, int c2, int tolerance)
+			{
+				return luminance(c1, Pixel.red(c2) * 30 + Pixel.green(c2) * 59 + Pixel.blue(c2) * 11,
+						100 * tolerance) != 0;
+			}
+		};
+
+		/** Checks if two colours are similar
+		 * @param c1 A 32 bit colour
+		 * @param c2 A 32 bit colour
+		 * @param tolerance The difference two colours must be under
+		 * @return true if their difference is less than the tolerance
+		 */
+		public abstract boolean isSimilar(int c1, int c2, int tolerance);
+	}
+
+	private long[] bits;
+	private int width;
+	private int height;
+	private int wordsPerRow;
+	// One bit for each long of bits, set once it has been worked out
+	private long[] ready;
+
+	// What the bits are worked out from (no metric until compute() is called)
+	private int[] pixels;
+	private int stride;
+	private int seed;
+	private int tolerance;
+	private Metric metric;
+	// The tolerance in the units the metric measures, and the seed's
+	// brightness for LUMINANCE
+	private int limit;
+	private int seedBrightness;
+
+	/** Creates an empty mask (no pixel is similar)
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 */
+	public SimilarityMask(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width + 63) >>> 6;
+		bits = new long[wordsPerRow * height];
+		ready = new long[(bits.length + 63) >>> 6];
+	}
+
+	/** Starts a new mask for a seed colour. Each long of bits is worked
+	 *		out the first time it is looked at, so a small fill only sweeps
+	 *		the pixels around it.
+	 * @param pixels The raster of 32 bit colours (the size of this mask, it
+	 *		must not change while the mask is used)
+	 * @param stride The distance between the start of two rows
+	 * @param seed The colour to compare with
+	 * @param tolerance The difference a similar colour must be under
+	 *		(MIN_TOLERANCE to MAX_TOLERANCE)
+	 * @param metric How the difference is measured
+	 * @throws IllegalArgumentException if the tolerance is out of range
+	 */
+	public void compute(int[] pixels, int stride, int seed, int tolerance, Metric metric)
+	{
+		checkTolerance(tolerance);
+		this.pixels = pixels;
+		this.stride = stride;
+		this.seed = seed;
+		this.tolerance = tolerance;
+		this.metric = metric;
+
+		// The limit in the units each metric measures
+		limit = metric == Metric.EUCLIDEAN ? tolerance * tolerance
+				: metric == Metric.LUMINANCE ? 100 * tolerance : tolerance;
+		seedBrightness = Pixel.red(seed) * 30 + Pixel.green(seed) * 59 + Pixel.blue(seed) * 11;
+		Arrays.fill(ready, 0);
+	}
+
+	/** Checks that a tolerance is in range
+	 * @param tolerance The difference a similar colour must be under
+	 * @throws IllegalArgumentException if it is not from MIN_TOLERANCE to MAX_TOLERANCE
+	 */
+	public static void checkTolerance(int tolerance)
+	{
+		if (tolerance < MIN_TOLERANCE || tolerance > MAX_TOLERANCE)
+			throw new IllegalArgumentException("Tolerance must be from " + MIN_TOLERANCE + " to "
+					+ MAX_TOLERANCE + ": " + tolerance);
+	}
+
+	/** Get a long of bits, working it out first if it has not been done yet
+	 * @param y The y coordinate of the row
+	 * @param word Which long of the row (x / 64)
+	 * @return The bits of the 64 pixels from x = word * 64
+	 */
+	private long getWord(int y, int word)
+	{
+		int index = y * wordsPerRow + word;
+		if ((ready[index >>> 6] & 1L << index) != 0)
+			return bits[index];
+		ready[index >>> 6] |= 1L << index;
+
+		int start = y * stride + (word << 6);
+		int end = y * stride + Math.min(width, (word + 1) << 6);
+		// One bit (0 or 1) for each pixel, no branches
+		long set = 0;
+		switch (metric)
+		{
+			case MAX_CHANNEL:
+				for (int i = start; i < end; i ++)
+					set |= (long) maxChannel(pixels[i], seed, limit) << (i - start);
+				break;
+			case EUCLIDEAN:
+				for (int i = start; i < end; i ++)
+					set |= (long) euclidean(pixels[i], seed, limit) << (i - start);
+				break;
+			default:
+				for (int i = start; i < end; i ++)
+					set |= (long) luminance(pixels[i], seedBrightness, limit) << (i - start);
+		}
+		bits[index] = set;
+		return set;
+	}
+
+	/** Checks if the bits were worked out for a seed colour, tolerance and metric
+	 * @param seed The colour to compare with
+	 * @param tolerance The difference a similar colour must be under
+	 * @param metric How the difference is measured
+	 * @return true if compute() was last called with the same values
+	 */
+	public boolean matches(int seed, int tolerance, Metric metric)
+	{
+		return this.metric == metric && this.seed == seed && this.tolerance == tolerance;
+	}
+
+	/** Get the number of pixels in a row
+	 * @return The width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/** Get the number of rows
+	 * @return The height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/** Checks if a pixel's bit is set
+	 * @param x The x coordinate of the pixel
+	 * @param y The y coordinate of the pixel
+	 * @return true if it is set
+	 */
+	public boolean get(int x, int y)
+	{
+		return (getWord(y, x >>> 6) & 1L << x) != 0;
+	}
+
+	/** Finds the start of the run of set bits a pixel is in
+	 * @param x The x coordinate of a pixel whose bit is set
+	 * @param y The y coordinate of the pixel
+	 * @return The smallest x coordinate with all the bits from it to x set
+	 */
+	public int getRunLeft(int x, int y)
+	{
+		int word = x >>> 6;
+		// The clear bits at or before x
+		long clear = ~getWord(y, word) & -1L >>> (63 - (x & 63));
+		while (clear == 0)
+		{
+			if (-- word < 0)
+				return 0;
+			clear = ~getWord(y, word);
+		}
+		return (word << 6) + 64 - Long.numberOfLeadingZeros(clear);
+	}
+
+	/** Finds the end of the run of set bits a pixel is in
+	 * @param x The x coordinate of a pixel whose bit is set
+	 * @param y The y coordinate of the pixel
+	 * @return The largest x coordinate with all the bits from x to it set
+	 */
+	public int getRunRight(int x, int y)
+	{
+		int word = x >>> 6;
+		// The clear bits at or after x
+		long clear = ~getWord(y, word) & -1L << x;
+		while (clear == 0)
+		{
+			if (++ word == wordsPerRow)
+				return width - 1;
+			clear = ~getWord(y, word);
+		}
+		return Math.min(width, (word << 6) + Long.numberOfTrailingZeros(clear)) - 1;
+	}
+
+	/** Finds the next set bit in part of a row
+	 * @param x The x coordinate to start looking from
+	 * @param y The y coordinate of the row
+	 * @param last The last x coordinate to look at
+	 * @return The x coordinate of the first set bit, or -1 if there is none
+	 */
+	public int nextSet(int x, int y, int last)
+	{
+		if (x > last)
+			return -1;
+		int word = x >>> 6;
+		long set = getWord(y, word) & -1L << x;
+		while (set == 0)
+		{
+			if (++ word > last >>> 6)
+				return -1;
+			set = getWord(y, word);
+		}
+		int next = (word << 6) + Long.numberOfTrailingZeros(set);
+		return next <= last ? next : -1;
+	}
+
+	/** Clears the bits of a run of pixels in a row
+	 * @param y The y coordinate of the row
+	 * @param left The first x coordinate to clear
+	 * @param right The last x coordinate to clear
+	 */
+	public void clearRun(int y, int left, int right)
+	{
+		for (int x = left; x <= right; )
+		{
+			// Worked out first, so the cleared bits are not worked out again
+			int word = x >>> 6;
+			int end = Math.min(right, (word << 6) + 63);
+			bits[y * wordsPerRow + word] = getWord(y, word) & ~(-1L << x & -1L >>> (63 - (end & 63)));
+			x = end + 1;
+		}
+	}
+
+	/** Compares with the biggest channel difference
+	 * @param colour The colour of a pixel
+	 * @param seed The seed colour
+	 * @param limit The tolerance
+	 * @return 1 if every channel differs by less than the limit, 0 if not
+	 */
+	private static int maxChannel(int colour, int seed, int limit)
+	{
+		return ((Math.abs((colour >>> 24) - (seed >>> 24)) - limit)
+				& (Math.abs(((colour >> 16) & 0xFF) - ((seed >> 16) & 0xFF)) - limit)
+				& (Math.abs(((colour >> 8) & 0xFF) - ((seed >> 8) & 0xFF)) - limit)
+				& (Math.abs((colour & 0xFF) - (seed & 0xFF)) - limit)) >>> 31;
+	}
+
+	/** Compares with the distance in ARGB space
+	 * @param colour The colour of a pixel
+	 * @param seed The seed colour
+	 * @param limit The square of the tolerance
+	 * @return 1 if the squared distance is less than the limit, 0 if not
+	 */
+	private static int euclidean(int colour, int seed, int limit)
+	{
+		int alpha = (colour >>> 24) - (seed >>> 24);
+		int red = ((colour >> 16) & 0xFF) - ((seed >> 16) & 0xFF);
+		int green = ((colour >> 8) & 0xFF) - ((seed >> 8) & 0xFF);
+		int blue = (colour & 0xFF) - (seed & 0xFF);
+		return (alpha * alpha + red * red + green * green + blue * blue - limit) >>> 31;
+	}
+
+	/** Compares with the difference in brightness
+	 * @param colour The colour of a pixel
+	 * @param seedBrightness The seed's weighted RGB total (in hundredths)
+	 * @param limit The tolerance in hundredths
+	 * @return 1 if the brightness differs by less than the limit, 0 if not
+	 */
+	private static int luminance(int colour, int seedBrightness, int limit)
+	{
+		int brightness = ((colour >> 16) & 0xFF) * 30 + ((colour >> 8) & 0xFF) * 59 + (colour & 0xFF) * 11;
+		return (Math.abs(brightness - seedBrightness) - limit) >>> 31;
+	}
+}
@@ -0,0 +1,435 @@
+
+/** Applies effects to images that are too big to fit in memory. The image
+ * is read, changed and written a strip of rows at a time, so the memory
+ * used depends on the width and the strip size but not on the height.
+ * Each effect is a stage that takes rows from the stage before it and
+ * passes its own rows on:
+ *		- Point effects (negative, bw) in a row are done together on each row
+ *		- flip only needs the row itself
+ *		- shrink needs 2 rows for each new row
+ *		- blur, sharpen, emboss, edges and threshold need a few rows above and below
+ *		  (the halo), so they keep that many extra rows from the last strip
+ * The strips are exactly the same as doing the whole image at once, since
+ * the rows that are kept are only ever used as the halo, never as results.
+ * shapes looks at the whole image at once, so it cannot be done this way.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StripProcessor
+{
+	// The number of rows read (and processed by each effect) at a time
+	final public static int DEFAULT_STRIP_ROWS = 256;
+
+	private List<PictureOperation> ops;
+	private int stripRows;
+
+	/** Takes rows from the stage before it and passes rows on to the next
+	 */
+	private static abstract class Stage
+	{
+		protected Stage next;
+		protected int width;
+		protected int height;
+
+		/** Called once before any rows are pushed
+		 * @param width The width of the rows that will be pushed
+		 * @param height The number of rows that will be pushed
+		 * @throws IOException if the rows cannot be written
+		 */
+		void begin(int width, int height) throws IOException
+		{
+			this.width = width;
+			this.height = height;
+			next.begin(getOutputWidth(), getOutputHeight());
+		}
+
+		/** Get the width of the rows this stage passes on
+		 * @return The width
+		 */
+		int getOutputWidth()
+		{
+			return width;
+		}
+
+		/** Get the number of rows this stage passes on
+		 * @return The height
+		 */
+		int getOutputHeight()
+		{
+			return height;
+		}
+
+		/** Takes the next rows. The stage may change the rows in place.
+		 * @param pixels The rows
+		 * @param offset The index of the first row
+		 * @param stride The distance between the start of two rows
+		 * @param count The number of rows
+		 * @throws IOException if the rows cannot be written
+		 */
+		abstract void push(int[] pixels, int offset, int stride, int count) throws IOException;
+
+		/** Called after the last row has been pushed
+		 * @throws IOException if the rows cannot be written
+		 */
+		void finish() throws IOException
+		{
+			next.finish();
+		}
+	}
+
+	/** Passes the rows on to a RowSink
+	 */
+	private static class SinkStage extends Stage
+	{
+		private RowSink sink;
+
+		SinkStage(RowSink sink)
+		{
+			this.sink = sink;
+		}
+
+		void begin(int width, int height) throws IOException
+		{
+			this.width = width;
+			this.height = height;
+			sink.begin(width, height);
+		}
+
+		void push(int[] pixels, int offset, int stride, int count) throws IOException
+		{
+			sink.writeRows(pixels, offset, stride, count);
+		}
+
+		void finish()
+		{
+		}
+	}
+
+	/** Applies point effects to each row
+	 */
+	private static class PointStage extends Stage
+	{
+		private PointOp[] ops;
+
+		PointStage(PointOp[] ops)
+		{
+			this.ops = ops;
+		}
+
+		void push(int[] pixels, int offset, int stride, int count) throws IOException
+		{
+			for (int r = 0; r < count; r ++)
+				for (PointOp op : ops)
+					op.apply(pixels, offset + r * stride, offset + r * stride + width);
+			next.push(pixels, offset, stride, count);
+		}
+	}
+
+	/** Mirrors each row (the same as Picture.flip)
+	 */
+	private static class FlipStage extends Stage
+	{
+		void push(int[] pixels, int offset, int stride, int count) throws IOException
+		{
+			for (int r = 0; r < count; r ++)
+			{
+				int left = offset + r * stride;
+				int right = left + width - 1;
+				for (int col = 0; col < width / 2; col ++)
+				{
+					int p = pixels[left + col];
+					pixels[left + col] = pixels[right - col];
+					pixels[right - col] = p;
+				}
+			}
+			next.push(pixels, offset, stride, count);
+		}
+	}
+
+	/** Averages each 2x2 block of pixels into one (the same as Picture.shrink)
+	 */
+	private static class ShrinkStage extends Stage
+	{
+		private int[] top;			// The first row of the pair, once it is in
+		private boolean haveTop;
+		private int[] output;		// One new row
+		private int rowsSeen;
+
+		void begin(int width, int height) throws IOException
+		{
+			top = new int[width];
+			output = new int[Math.max(1, width / 2)];
+			super.begin(width, height);
+		}
+
+		private boolean unchanged()
+		{
+			// Picture.shrink leaves images this small alone
+			return width <= 1 || height <= 1;
+		}
+
+		int getOutputWidth()
+		{
+			return unchanged() ? width : width / 2;
+		}
+
+		int getOutputHeight()
+		{
+			return unchanged() ? height : height / 2;
+		}
+
+		void push(int[] pixels, int offset, int stride, int count) throws IOException
+		{
+			if (unchanged())
+			{
+				next.push(pixels, offset, stride, count);
+				return;
+			}
+
+			for (int r = 0; r < count; r ++)
+			{
+				int start = offset + r * stride;
+				rowsSeen ++;
+				if (!haveTop)
+				{
+					// The last row of an odd height is dropped, as in shrink()
+					if (rowsSeen <= 2 * getOutputHeight())
+					{
+						System.arraycopy(pixels, start, top, 0, width);
+						haveTop = true;
+					}
+					continue;
+				}
+
+				for (int x = 0; x < width / 2; x ++)
+					output[x] = Pixel.average4(top[2*x], top[2*x+1], pixels[start + 2*x], pixels[start + 2*x+1]);
+				haveTop = false;
+				next.push(output, 0, width / 2, 1);
+			}
+		}
+	}
+
+	/** Applies an effect that needs a few rows above and below each row. The
+	 *		effect is run on a small Picture made of the strip and its halo,
+	 *		and only the strip's own rows are passed on.
+	 */
+	private static class HaloStage extends Stage
+	{
+		private PictureOperation op;
+		private int halo;
+		private int stripRows;
+
+		// The rows from bufferStart up to bufferEnd (not changed by the effect)
+		private int[] buffer;
+		private int bufferStart;
+		private int bufferEnd;
+		private int[] work;
+		// The next row to pass on
+		private int nextRow;
+
+		HaloStage(PictureOperation op, int halo, int stripRows)
+		{
+			this.op = op;
+			this.halo = halo;
+			this.stripRows = stripRows;
+		}
+
+		void begin(int width, int height) throws IOException
+		{
+			buffer = new int[(stripRows + 2 * halo) * width];
+			work = new int[buffer.length];
+			super.begin(width, height);
+		}
+
+		void push(int[] pixels, int offset, int stride, int count) throws IOException
+		{
+			for (int r = 0; r < count; r ++)
+			{
+				System.arraycopy(pixels, offset + r * stride, buffer,
+						(bufferEnd - bufferStart) * width, width);
+				bufferEnd ++;
+
+				// A full strip and the halo below it are in
+				if (bufferEnd - nextRow == stripRows + halo)
+					processStrip(nextRow + stripRows);
+			}
+		}
+
+		void finish() throws IOException
+		{
+			if (nextRow < height)
+				processStrip(height);
+			super.finish();
+		}
+
+		/** Runs the effect on the buffered rows and passes on the finished ones
+		 * @param end One past the last row to pass on
+		 * @throws IOException if the rows cannot be written
+		 */
+		private void processStrip(int end) throws IOException
+		{
+			int rows = bufferEnd - bufferStart;
+			System.arraycopy(buffer, 0, work, 0, rows * width);
+			Picture strip = new Picture(work, width, rows, width, null);
+			op.apply(strip);
+			next.push(strip.getRaster(), (nextRow - bufferStart) * strip.getStride(),
+					strip.getStride(), end - nextRow);
+			strip.dispose();		// The next strip can use its rasters (work is not given away)
+			nextRow = end;
+
+			// Keep only the halo above the next strip
+			int keep = Math.max(bufferStart, nextRow - halo);
+			System.arraycopy(buffer, (keep - bufferStart) * width, buffer, 0, (bufferEnd - keep) * width);
+			bufferStart = keep;
+		}
+	}
+
+	/** Creates a processor for a list of effects
+	 * @param ops The effects in order
+	 * @param stripRows The number of rows to process at a time
+	 * @throws IllegalArgumentException if one of the effects needs the whole image
+	 */
+	public StripProcessor(List<PictureOperation> ops, int stripRows)
+	{
+		if (stripRows < 1)
+			throw new IllegalArgumentException("Strips must have at least 1 row: " + stripRows);
+		for (PictureOperation op : ops)
+			if (op != PictureOperation.FLIP && op != PictureOperation.SHRINK
+					&& op.getPointOp() == null && getHalo(op) < 0)
+				throw new IllegalArgumentException("The " + op.getName()
+						+ " effect needs the whole image and cannot be done in strips");
+		this.ops = ops;
+		this.stripRows = stripRows;
+	}
+
+	/** Get the number of rows above and below each row that an effect uses
+	 * @param op The effect
+	 * @return The number of rows, or -1 if it uses the whole image
+	 */
+	public static int getHalo(PictureOperation op)
+	{
+		switch (op)
+		{
+			case BLUR:
+				return 1;				// blur() is a 3x3 box
+			case SHARPEN:
+				return ConvolutionKernel.SHARPEN.getHeight() / 2;
+			case EMBOSS:
+				return ConvolutionKernel.EMBOSS.getHeight() / 2;
+			case EDGES:
+				return ConvolutionKernel.EDGE_DETECT.getHeight() / 2;
+			case THRESHOLD:
+				return 7;				// adaptiveThreshold() uses a 15x15 window
+			default:
+				return -1;
+		}
+	}
+
+	/** Applies the effects to an image file and saves the result as a PNG
+	 *		or as a memory mapped raster file (see MappedRaster)
+	 * @param input The image file or raster file
+	 * @param output The .png or .argb file to write
+	 * @throws IOException if the image cannot be read or written
+	 */
+	public void process(File input, File output) throws IOException
+	{
+		boolean raster = MappedRaster.isRaster(output);
+		if (!raster && !PictureIO.getFormat(output).equals("png"))
+			throw new IOException("Only PNG and raster files can be written in strips: " + output);
+
+		RowSource source = open(input);
+		try
+		{
+			process(source, raster ? MappedRaster.createSink(output)
+					: new PngRowWriter(new BufferedOutputStream(new FileOutputStream(output))));
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	/** Applies the effects to the rows of a source and writes them to a sink
+	 * @param source Where to read the rows from (not closed)
+	 * @param sink Where to write the new rows (closed at the end)
+	 * @throws IOException if the rows cannot be read or written
+	 */
+	public void process(RowSource source, RowSink sink) throws IOException
+	{
+		try
+		{
+			Stage first = buildStages(sink);
+			int width = source.getWidth();
+			int height = source.getHeight();
+			first.begin(width, height);
+
+			int [] strip = new int[stripRows * width];
+			for (int row = 0; row < height; row += stripRows)
+			{
+				int count = Math.min(stripRows, height - row);
+				source.readRows(strip, 0, width, count);
+				first.push(strip, 0, width, count);
+			}
+			first.finish();
+		}
+		finally
+		{
+			sink.close();
+		}
+	}
+
+	/** Opens an image to be read in strips. Raster files are mapped, PNGs
+	 *		are read a row at a time and everything else goes through ImageIO.
+	 * @param file The image file or raster file
+	 * @return The source of the rows
+	 * @throws IOException if the file cannot be read
+	 */
+	public static RowSource open(File file) throws IOException
+	{
+		if (MappedRaster.isRaster(file))
+			return MappedRaster.open(file, false).getSource();
+		if (PngRowReader.canRead(file))
+			return new PngRowReader(file);
+		return new ImageIORowSource(file);
+	}
+
+	/** Makes the chain of stages for the effects
+	 * @param sink Where the last stage writes its rows
+	 * @return The first stage
+	 */
+	private Stage buildStages(RowSink sink)
+	{
+		List<Stage> stages = new ArrayList<Stage>();
+		List<PointOp> run = new ArrayList<PointOp>();
+		for (PictureOperation op : ops)
+		{
+			if (op.getPointOp() != null)
+			{
+				run.add(op.getPointOp());
+				continue;
+			}
+			if (!run.isEmpty())
+				stages.add(new PointStage(run.toArray(new PointOp[run.size()])));
+			run.clear();
+
+			if (op == PictureOperation.FLIP)
+				stages.add(new FlipStage());
+			else if (op == PictureOperation.SHRINK)
+				stages.add(new ShrinkStage());
+			else
+				stages.add(new HaloStage(op, getHalo(op), stripRows));
+		}
+		if (!run.isEmpty())
+			stages.add(new PointStage(run.toArray(new PointOp[run.size()])));
+		stages.add(new SinkStage(sink));
+
+		for (int i = 0; i + 1 < stages.size(); i ++)
+			stages.get(i).next = stages.get(i + 1);
+		return stages.get(0);
+	}
+}
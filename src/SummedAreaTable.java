@@ -0,0 +1,270 @@
+
+/** The summed-area table (integral image) of a raster: for every (x, y) the
+ * totals of the Red, Green and Blue values of all the pixels above and to
+ * the left of it. Once it is built the total, mean and variance of any
+ * rectangle take 4 lookups each, however big the rectangle is, so effects
+ * that average a window around every pixel (e.g. adaptiveThreshold) or a
+ * block for every new pixel (e.g. shrinking to any size) cost the same for
+ * any window size.
+ * The table has one more row and column than the image (the first row and
+ * column are 0) and the 3 channels are stored next to each other, so a
+ * rectangle's corners give all 3 totals from the same cache lines. For
+ * images up to 16.8 million pixels (where any total, at most 255 per pixel,
+ * fits in 32 unsigned bits) it uses ints: a sum can wrap around while the
+ * table is built, but the 4 corner values of a rectangle still subtract to
+ * its exact total. Bigger images use longs. The totals of the squared values
+ * (for the variance) are only kept if asked for and always use longs.
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.Arrays;
+
+public class SummedAreaTable
+{
+	// The channels that can be asked for
+	final public static int RED = 0;
+	final public static int GREEN = 1;
+	final public static int BLUE = 2;
+
+	// The most pixels a rectangle can have for its totals to fit in 32 bits
+	final private static long MAX_INT_PIXELS = 0xFFFFFFFFL / 255;
+
+	private int width;
+	private int height;
+	// The distance between the start of two rows of the table (3 per column)
+	private int rowLength;
+	// The totals, exactly one of these is used
+	private int[] sums;
+	private long[] longSums;
+	// The totals of the squared values (or null)
+	private long[] squares;
+
+	/** Builds the table for a raster in one pass over it
+	 * @param pixels The raster of 32 bit colours
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param stride The distance between the start of two rows
+	 * @param withSquares true to also keep the squared totals, so that
+	 *		getVariance() can be used
+	 * @throws IllegalArgumentException if the image is too big for a table
+	 */
+	public SummedAreaTable(int[] pixels, int width, int height, int stride, boolean withSquares)
+	{
+		long entries = 3L * (width + 1) * (height + 1);
+		if (width < 1 || height < 1 || entries > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("No summed-area table for a " + width + "x" + height + " image");
+		this.width = width;
+		this.height = height;
+		rowLength = 3 * (width + 1);
+
+		if ((long) width * height <= MAX_INT_PIXELS)
+		{
+			// From the pool, so only the first row and column need clearing
+			sums = RasterPool.take((int) entries);
+			buildInts(pixels, stride);
+		}
+		else
+		{
+			longSums = new long[(int) entries];
+			buildLongs(pixels, stride);
+		}
+		if (withSquares)
+		{
+			squares = new long[(int) entries];
+			buildSquares(pixels, stride);
+		}
+	}
+
+	/** Gives the table's int array back to the RasterPool. The table must
+	 *		not be used afterwards.
+	 */
+	public void dispose()
+	{
+		RasterPool.give(sums);
+		sums = null;
+		longSums = null;
+		squares = null;
+	}
+
+	/** Get the width of the image the table was built from
+	 * @return The width in pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/** Get the height of the image the table was built from
+	 * @return The height in pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/** Get the total of one channel over a rectangle
+	 * @param channel RED, GREEN or BLUE
+	 * @param x The left edge of the rectangle
+	 * @param y The top edge of the rectangle
+	 * @param w The width of the rectangle
+	 * @param h The height of the rectangle
+	 * @return The total of the channel's values (0-255 each)
+	 * @throws IllegalArgumentException if the rectangle is not inside the image
+	 */
+	public long getSum(int channel, int x, int y, int w, int h)
+	{
+		int corner = getCorner(channel, x, y, w, h);
+		int right = corner + 3 * w;
+		int below = corner + h * rowLength;
+		if (sums != null)
+			return (sums[below + 3 * w] - sums[below] - sums[right] + sums[corner]) & 0xFFFFFFFFL;
+		return longSums[below + 3 * w] - longSums[below] - longSums[right] + longSums[corner];
+	}
+
+	/** Get the mean of one channel over a rectangle
+	 * @param channel RED, GREEN or BLUE
+	 * @param x The left edge of the rectangle
+	 * @param y The top edge of the rectangle
+	 * @param w The width of the rectangle
+	 * @param h The height of the rectangle
+	 * @return The mean value (0-255)
+	 * @throws IllegalArgumentException if the rectangle is not inside the image
+	 */
+	public double getMean(int channel, int x, int y, int w, int h)
+	{
+		return getSum(channel, x, y, w, h) / ((double) w * h);
+	}
+
+	/** Get the variance of one channel over a rectangle
+	 * @param channel RED, GREEN or BLUE
+	 * @param x The left edge of the rectangle
+	 * @param y The top edge of the rectangle
+	 * @param w The width of the rectangle
+	 * @param h The height of the rectangle
+	 * @return The variance of the values (the mean of the squares minus the
+	 *		square of the mean)
+	 * @throws IllegalArgumentException if the rectangle is not inside the image
+	 * @throws IllegalStateException if the table was built without the squares
+	 */
+	public double getVariance(int channel, int x, int y, int w, int h)
+	{
+		if (squares == null)
+			throw new IllegalStateException("The summed-area table was built without the squared totals");
+		int corner = getCorner(channel, x, y, w, h);
+		int right = corner + 3 * w;
+		int below = corner + h * rowLength;
+		double count = (double) w * h;
+		double mean = getSum(channel, x, y, w, h) / count;
+		long squared = squares[below + 3 * w] - squares[below] - squares[right] + squares[corner];
+		return Math.max(0, squared / count - mean * mean);
+	}
+
+	/** Get the average colour of a rectangle, rounded down the same way as
+	 *		Pixel.getAverageValue()
+	 * @param x The left edge of the rectangle
+	 * @param y The top edge of the rectangle
+	 * @param w The width of the rectangle
+	 * @param h The height of the rectangle
+	 * @return A 32 bit colour, Alpha (always 255) and RGB in that order
+	 * @throws IllegalArgumentException if the rectangle is not inside the image
+	 */
+	public int getAverageColour(int x, int y, int w, int h)
+	{
+		long count = (long) w * h;
+		return 0xFF000000 | (int) (getSum(RED, x, y, w, h) / count) << 16
+				| (int) (getSum(GREEN, x, y, w, h) / count) << 8 | (int) (getSum(BLUE, x, y, w, h) / count);
+	}
+
+	/** Checks a rectangle and finds its top left corner in the table
+	 * @param channel RED, GREEN or BLUE
+	 * @param x The left edge of the rectangle
+	 * @param y The top edge of the rectangle
+	 * @param w The width of the rectangle
+	 * @param h The height of the rectangle
+	 * @return The index of the table entry for (x, y)
+	 * @throws IllegalArgumentException if the rectangle is not inside the image
+	 */
+	private int getCorner(int channel, int x, int y, int w, int h)
+	{
+		if (channel < RED || channel > BLUE || x < 0 || y < 0 || w < 1 || h < 1
+				|| x > width - w || y > height - h)
+			throw new IllegalArgumentException("Rectangle " + x + "," + y + " " + w + "x" + h
+					+ " (channel " + channel + ") is not inside the " + width + "x" + height + " image");
+		return y * rowLength + 3 * x + channel;
+	}
+
+	/** Fills in the int table: each entry is the one above it plus the
+	 *		total of the row so far (wrapping around is fine, see above)
+	 * @param pixels The raster of 32 bit colours
+	 * @param stride The distance between the start of two rows
+	 */
+	private void buildInts(int[] pixels, int stride)
+	{
+		Arrays.fill(sums, 0, rowLength, 0);
+		for (int y = 0; y < height; y ++)
+		{
+			int row = (y + 1) * rowLength;
+			sums[row] = sums[row + 1] = sums[row + 2] = 0;
+			// The totals of this row up to x (at most 255 * width)
+			int red = 0, green = 0, blue = 0;
+			for (int x = 0, in = y * stride, i = row + 3; x < width; x ++, in ++, i += 3)
+			{
+				int colour = pixels[in];
+				red += (colour >> 16) & 0xFF;
+				green += (colour >> 8) & 0xFF;
+				blue += colour & 0xFF;
+				sums[i] = sums[i - rowLength] + red;
+				sums[i + 1] = sums[i + 1 - rowLength] + green;
+				sums[i + 2] = sums[i + 2 - rowLength] + blue;
+			}
+		}
+	}
+
+	/** Fills in the long table, the same as buildInts()
+	 * @param pixels The raster of 32 bit colours
+	 * @param stride The distance between the start of two rows
+	 */
+	private void buildLongs(int[] pixels, int stride)
+	{
+		for (int y = 0; y < height; y ++)
+		{
+			int row = (y + 1) * rowLength;
+			int red = 0, green = 0, blue = 0;
+			for (int x = 0, in = y * stride, i = row + 3; x < width; x ++, in ++, i += 3)
+			{
+				int colour = pixels[in];
+				red += (colour >> 16) & 0xFF;
+				green += (colour >> 8) & 0xFF;
+				blue += colour & 0xFF;
+				longSums[i] = longSums[i - rowLength] + red;
+				longSums[i + 1] = longSums[i + 1 - rowLength] + green;
+				longSums[i + 2] = longSums[i + 2 - rowLength] + blue;
+			}
+		}
+	}
+
+	/** Fills in the table of the totals of the squared values
+	 * @param pixels The raster of 32 bit colours
+	 * @param stride The distance between the start of two rows
+	 */
+	private void buildSquares(int[] pixels, int stride)
+	{
+		for (int y = 0; y < height; y ++)
+		{
+			int row = (y + 1) * rowLength;
+			long red = 0, green = 0, blue = 0;
+			for (int x = 0, in = y * stride, i = row + 3; x < width; x ++, in ++, i += 3)
+			{
+				int colour = pixels[in];
+				int r = (colour >> 16) & 0xFF, g = (colour >> 8) & 0xFF, b = colour & 0xFF;
+				red += r * r;
+				green += g * g;
+				blue += b * b;
+				squares[i] = squares[i - rowLength] + red;
+				squares[i + 1] = squares[i + 1 - rowLength] + green;
+				squares[i + 2] = squares[i + 2 - rowLength] + blue;
+			}
+		}
+	}
+}
@@ -0,0 +1,588 @@
+
+/** Remembers how to undo the changes made to a Picture, using as little
+ * memory as possible instead of keeping a full copy for every step:
+ *		- Effects that undo themselves (flip, negative) only store the effect
+ *		- Other changes store only the 64x64 tiles that changed (e.g. a flood
+ *		  fill usually changes a few tiles out of hundreds)
+ *		- Changes to the size of the image (shrink) store the old raster
+ * A flood fill tells the history about each span just before filling it,
+ * so only the tiles it touches are copied and compared, and a small fill
+ * costs the same in a big image as in a small one. Other effects change
+ * every pixel anyway, so the whole raster is copied first (into an array
+ * borrowed from the RasterPool and given back once the step is stored).
+ * The saved tiles are shared: a tile whose old colours are the same as one
+ * already stored (a plain background, or a fill that is done and then done
+ * again) uses the stored copy, and its memory only counts once however many
+ * steps use it. A stored tile is never changed, undo copies out of it, so
+ * it can be shared safely and is dropped when the last step using it goes.
+ * The oldest steps are forgotten once the stored steps use more than the
+ * memory budget, so the number of undo steps depends on how big they are.
+ * The newest step is always kept, even if it is bigger than the whole
+ * budget on its own, so the last change can always be undone.
+ * The budget (in MB) can be set on the command line with
+ * -Dpicture.undoBudget=n
+ * @author 	Jerry Yu
+ * @version	Oct. 23, 2012
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+public class UndoHistory
+{
+	// The width and height of a tile
+	final public static int TILE_SIZE = 64;
+
+	// Rough size of an undo step apart from its pixels (the objects and arrays)
+	final private static int STEP_OVERHEAD = 64;
+
+	// Rough size of a stored tile apart from its colours
+	final private static int TILE_OVERHEAD = 48;
+
+	private long budget;
+	private long used;
+	private LinkedList<Step> steps;
+	// Every stored tile, so a tile with the same colours can be shared
+	private HashMap<Tile, Tile> shared;
+
+	// The Picture being recorded between begin() and commit() (or null),
+	// its size then, and which of its tiles have been saved so far
+	private Picture recording;
+	private int beforeWidth;
+	private int beforeHeight;
+	private long[] savedTiles;
+	// The tiles saved so far and their old colours (see TileStep), only
+	// kept until commit() so they are never outside the budget for long
+	private int[] tiles;
+	private int tileCount;
+	private int[] colours;
+	private int colourCount;
+
+	/** One change that can be undone
+	 */
+	private static abstract class Step
+	{
+		/** Get the memory used by this step
+		 * @return The (rough) number of bytes
+		 */
+		abstract long getSize();
+
+		/** Changes a Picture back to how it was before this step
+		 * @param picture The Picture this step was recorded for
+		 */
+		abstract void undo(Picture picture);
+	}
+
+	/** An effect that undoes itself when it is applied again
+	 */
+	private static class InverseStep extends Step
+	{
+		private PictureOperation op;
+
+		InverseStep(PictureOperation op)
+		{
+			this.op = op;
+		}
+
+		long getSize()
+		{
+			return STEP_OVERHEAD;
+		}
+
+		void undo(Picture picture)
+		{
+			op.apply(picture);
+		}
+	}
+
+	/** The colours of one tile, row by row, shared by every step that saved
+	 *		the same colours (see share()). Two tiles are equal if their colours
+	 *		are, so a range of the colours being saved can be looked up
+	 *		without copying it first.
+	 */
+	private static class Tile
+	{
+		private int[] colours;
+		private int offset;
+		private int length;
+		private int hash;
+		private int uses;			// The number of times steps use it
+
+		Tile(int[] colours, int offset, int length)
+		{
+			this.colours = colours;
+			this.offset = offset;
+			this.length = length;
+			for (int i = offset; i < offset + length; i ++)
+				hash = 31 * hash + colours[i];
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Tile))
+				return false;
+			Tile tile = (Tile) other;
+			return hash == tile.hash && Arrays.equals(colours, offset, offset + length,
+					tile.colours, tile.offset, tile.offset + tile.length);
+		}
+	}
+
+	/** The old colours of the tiles that changed
+	 */
+	private static class TileStep extends Step
+	{
+		private int[] tiles;		// The index of each tile that changed
+		private Tile[] colours;		// The old colours of each of those tiles
+
+		TileStep(int[] tiles, Tile[] colours)
+		{
+			this.tiles = tiles;
+			this.colours = colours;
+		}
+
+		long getSize()
+		{
+			// The colours are counted once for all the steps (see share())
+			return STEP_OVERHEAD + 12L * tiles.length;
+		}
+
+		void undo(Picture picture)
+		{
+			int [] pixels = picture.getRaster();
+			int width = picture.getWidth();
+			int height = picture.getHeight();
+			int stride = picture.getStride();
+			int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+
+			for (int i = 0; i < tiles.length; i ++)
+			{
+				int left = (tiles[i] % tilesAcross) * TILE_SIZE;
+				int top = (tiles[i] / tilesAcross) * TILE_SIZE;
+				int tileWidth = Math.min(TILE_SIZE, width - left);
+				int bottom = Math.min(top + TILE_SIZE, height);
+				for (int y = top, next = 0; y < bottom; y ++, next += tileWidth)
+					System.arraycopy(colours[i].colours, next, pixels, y * stride + left, tileWidth);
+				picture.updateImage(left, top, tileWidth, bottom - top);
+			}
+		}
+	}
+
+	/** The whole raster from before the image changed size
+	 */
+	private static class RasterStep extends Step
+	{
+		private int[] pixels;
+		private int width;
+		private int height;
+
+		RasterStep(int[] pixels, int width, int height)
+		{
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+		}
+
+		long getSize()
+		{
+			return STEP_OVERHEAD + 4L * pixels.length;
+		}
+
+		void undo(Picture picture)
+		{
+			picture.setRaster(pixels, width, height, width);
+		}
+	}
+
+	/** Creates an empty history with the budget from -Dpicture.undoBudget
+	 *		(in MB, 64 if it is not set)
+	 */
+	public UndoHistory()
+	{
+		this(Long.getLong("picture.undoBudget", 64) << 20);
+	}
+
+	/** Creates an empty history
+	 * @param budget The most memory (in bytes) that the stored steps can use
+	 */
+	public UndoHistory(long budget)
+	{
+		if (budget < 0)
+			throw new IllegalArgumentException("Undo budget must not be negative: " + budget);
+		this.budget = budget;
+		steps = new LinkedList<Step>();
+		shared = new HashMap<Tile, Tile>();
+	}
+
+	/** Applies an effect to a Picture and remembers how to undo it
+	 * @param picture The Picture to change
+	 * @param op The effect
+	 */
+	public void apply(Picture picture, PictureOperation op)
+	{
+		if (op.isSelfInverse())
+		{
+			op.apply(picture);
+			add(new InverseStep(op));
+			return;
+		}
+
+		// The effect changes (nearly) every pixel, so copy them all first
+		int width = picture.getWidth();
+		int height = picture.getHeight();
+		int [] before = RasterPool.take(width * height);
+		int [] pixels = picture.getRaster();
+		int stride = picture.getStride();
+		for (int row = 0; row < height; row ++)
+			System.arraycopy(pixels, row * stride, before, row * width, width);
+
+		op.apply(picture);
+
+		// A new size, the old raster is needed to go back
+		if (picture.getWidth() != width || picture.getHeight() != height)
+		{
+			add(new RasterStep(Arrays.copyOf(before, width * height), width, height));
+			RasterPool.give(before);
+			return;
+		}
+
+		startTiles(width, height);
+		pixels = picture.getRaster();
+		stride = picture.getStride();
+		int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+		int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+		for (int tileY = 0; tileY < tilesDown; tileY ++)
+			for (int tileX = 0; tileX < tilesAcross; tileX ++)
+			{
+				int left = tileX * TILE_SIZE;
+				int top = tileY * TILE_SIZE;
+				if (tileChanged(pixels, stride, before, left, top))
+					saveTile(before, width, tileY * tilesAcross + tileX);
+			}
+		RasterPool.give(before);
+		addTiles();
+	}
+
+	/** Starts recording a change to a Picture made by something other than
+	 *		apply(), i.e. a flood fill: until commit() is called the Picture
+	 *		tells this history about each part it is about to fill, and only
+	 *		those tiles are saved. Effects must go through apply() instead.
+	 * @param picture The Picture that is about to change
+	 */
+	public void begin(Picture picture)
+	{
+		if (recording != null)
+			recording.setUndoHistory(null);
+		recording = picture;
+		startTiles(picture.getWidth(), picture.getHeight());
+		picture.setUndoHistory(this);
+	}
+
+	/** Saves the old colours of the tiles that a rectangle of a Picture
+	 *		overlaps, if they have not been saved since begin(). Called by
+	 *		the Picture just before it changes the rectangle.
+	 * @param picture The Picture being recorded
+	 * @param x The left edge of the rectangle
+	 * @param y The top edge of the rectangle
+	 * @param w The width of the rectangle
+	 * @param h The height of the rectangle
+	 */
+	void save(Picture picture, int x, int y, int w, int h)
+	{
+		int tilesAcross = (beforeWidth + TILE_SIZE - 1) / TILE_SIZE;
+		for (int tileY = y / TILE_SIZE; tileY <= (y + h - 1) / TILE_SIZE; tileY ++)
+			for (int tileX = x / TILE_SIZE; tileX <= (x + w - 1) / TILE_SIZE; tileX ++)
+			{
+				int tile = tileY * tilesAcross + tileX;
+				if ((savedTiles[tile >>> 6] & 1L << tile) != 0)
+					continue;
+				savedTiles[tile >>> 6] |= 1L << tile;
+				saveTile(picture.getRaster(), picture.getStride(), tile);
+			}
+	}
+
+	/** Stores the tiles that changed since begin() as a new undo step
+	 * @param picture The Picture that was changed
+	 * @return true if a step was added, false if nothing changed
+	 * @throws IllegalStateException if begin() was not called for the
+	 *		Picture, or its size changed (use apply() for that)
+	 */
+	public boolean commit(Picture picture)
+	{
+		if (recording != picture)
+			throw new IllegalStateException("commit() called without begin()");
+		recording = null;
+		picture.setUndoHistory(null);
+		if (picture.getWidth() != beforeWidth || picture.getHeight() != beforeHeight)
+		{
+			endTiles();
+			throw new IllegalStateException("The picture changed size while recording, use apply() for effects");
+		}
+
+		// Only keep the saved tiles that really changed (e.g. not the ones
+		// filled with the colour they already had)
+		int [] pixels = picture.getRaster();
+		int stride = picture.getStride();
+		int tilesAcross = (beforeWidth + TILE_SIZE - 1) / TILE_SIZE;
+		int kept = 0;
+		int keptColours = 0;
+		for (int i = 0, next = 0; i < tileCount; i ++)
+		{
+			int left = (tiles[i] % tilesAcross) * TILE_SIZE;
+			int top = (tiles[i] / tilesAcross) * TILE_SIZE;
+			int size = Math.min(TILE_SIZE, beforeWidth - left) * (Math.min(top + TILE_SIZE, beforeHeight) - top);
+			if (savedTileChanged(pixels, stride, next, left, top))
+			{
+				tiles[kept++] = tiles[i];
+				System.arraycopy(colours, next, colours, keptColours, size);
+				keptColours += size;
+			}
+			next += size;
+		}
+		tileCount = kept;
+		colourCount = keptColours;
+		return addTiles();
+	}
+
+	/** Changes a Picture back to how it was before the last step
+	 * @param picture The Picture the steps were recorded for
+	 * @return true if a step was undone, false if there was nothing to undo
+	 */
+	public boolean undo(Picture picture)
+	{
+		if (steps.isEmpty())
+			return false;
+		Step step = steps.removeLast();
+		forget(step);
+		step.undo(picture);
+		return true;
+	}
+
+	/** Checks if there is anything to undo
+	 * @return true if undo() would change the Picture
+	 */
+	public boolean canUndo()
+	{
+		return !steps.isEmpty();
+	}
+
+	/** Forgets all the steps (e.g. when a new image is loaded)
+	 */
+	public void clear()
+	{
+		steps.clear();
+		shared.clear();
+		used = 0;
+		if (recording != null)
+			recording.setUndoHistory(null);
+		recording = null;
+		endTiles();
+	}
+
+	/** Get the number of steps that can be undone
+	 * @return The number of steps
+	 */
+	public int getSize()
+	{
+		return steps.size();
+	}
+
+	/** Get the memory used by the stored steps
+	 * @return The (rough) number of bytes
+	 */
+	public long getUsedBytes()
+	{
+		return used;
+	}
+
+	/** Changes the memory budget, forgetting the oldest steps if needed (the
+	 *		newest step is always kept)
+	 * @param budget The most memory (in bytes) that the stored steps can use
+	 */
+	public void setBudget(long budget)
+	{
+		if (budget < 0)
+			throw new IllegalArgumentException("Undo budget must not be negative: " + budget);
+		this.budget = budget;
+		trim();
+	}
+
+	/** Adds a step and forgets the oldest steps if over the budget
+	 * @param step The new step
+	 */
+	private void add(Step step)
+	{
+		steps.addLast(step);
+		used += step.getSize();
+		trim();
+	}
+
+	/** Forgets the oldest steps until the rest fit in the budget, but never
+	 *		the newest one
+	 */
+	private void trim()
+	{
+		while (used > budget && steps.size() > 1)
+			forget(steps.removeFirst());
+	}
+
+	/** Takes a step out of the memory used, and drops the stored tiles that
+	 *		no other step uses
+	 * @param step The step that was removed
+	 */
+	private void forget(Step step)
+	{
+		used -= step.getSize();
+		if (step instanceof TileStep)
+			for (Tile tile : ((TileStep) step).colours)
+				if (-- tile.uses == 0)
+				{
+					shared.remove(tile);
+					used -= TILE_OVERHEAD + 4L * tile.length;
+				}
+	}
+
+	/** Get the stored tile with some colours, storing a copy of them if
+	 *		there is none yet
+	 * @param source The array holding the colours
+	 * @param offset The index of the first colour
+	 * @param length The number of colours
+	 * @return The stored tile (its use is counted)
+	 */
+	private Tile share(int[] source, int offset, int length)
+	{
+		Tile key = new Tile(source, offset, length);
+		Tile tile = shared.get(key);
+		if (tile == null)
+		{
+			// Keep the key, with its own copy of the colours
+			key.colours = Arrays.copyOfRange(source, offset, offset + length);
+			key.offset = 0;
+			tile = key;
+			shared.put(tile, tile);
+			used += TILE_OVERHEAD + 4L * length;
+		}
+		tile.uses ++;
+		return tile;
+	}
+
+	/** Starts saving tiles for a new step
+	 * @param width The width of the Picture
+	 * @param height The height of the Picture
+	 */
+	private void startTiles(int width, int height)
+	{
+		beforeWidth = width;
+		beforeHeight = height;
+		int tileTotal = ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+		savedTiles = new long[(tileTotal + 63) >>> 6];
+		tiles = new int[16];
+		tileCount = 0;
+		colours = new int[TILE_SIZE * TILE_SIZE];
+		colourCount = 0;
+	}
+
+	/** Copies the colours of a tile to the end of the saved colours
+	 * @param source The raster to copy from
+	 * @param stride The distance between the start of two rows of the raster
+	 * @param tile The index of the tile
+	 */
+	private void saveTile(int[] source, int stride, int tile)
+	{
+		int tilesAcross = (beforeWidth + TILE_SIZE - 1) / TILE_SIZE;
+		int left = (tile % tilesAcross) * TILE_SIZE;
+		int top = (tile / tilesAcross) * TILE_SIZE;
+		int tileWidth = Math.min(TILE_SIZE, beforeWidth - left);
+		int bottom = Math.min(top + TILE_SIZE, beforeHeight);
+
+		if (tileCount == tiles.length)
+			tiles = Arrays.copyOf(tiles, tiles.length * 2);
+		tiles[tileCount++] = tile;
+		int needed = colourCount + tileWidth * (bottom - top);
+		if (needed > colours.length)
+			colours = Arrays.copyOf(colours, Math.max(needed, colours.length * 2));
+		for (int y = top; y < bottom; y ++)
+		{
+			System.arraycopy(source, y * stride + left, colours, colourCount, tileWidth);
+			colourCount += tileWidth;
+		}
+	}
+
+	/** Stores the saved tiles as a new step (if there are any) and lets go
+	 *		of the arrays they were saved in
+	 * @return true if a step was added
+	 */
+	private boolean addTiles()
+	{
+		boolean added = tileCount > 0;
+		if (added)
+		{
+			int tilesAcross = (beforeWidth + TILE_SIZE - 1) / TILE_SIZE;
+			Tile [] saved = new Tile[tileCount];
+			for (int i = 0, next = 0; i < tileCount; i ++)
+			{
+				int left = (tiles[i] % tilesAcross) * TILE_SIZE;
+				int top = (tiles[i] / tilesAcross) * TILE_SIZE;
+				int size = Math.min(TILE_SIZE, beforeWidth - left) * (Math.min(top + TILE_SIZE, beforeHeight) - top);
+				saved[i] = share(colours, next, size);
+				next += size;
+			}
+			add(new TileStep(Arrays.copyOf(tiles, tileCount), saved));
+		}
+		endTiles();
+		return added;
+	}
+
+	/** Lets go of the arrays used to save the tiles of a step
+	 */
+	private void endTiles()
+	{
+		savedTiles = null;
+		tiles = null;
+		colours = null;
+		tileCount = colourCount = 0;
+	}
+
+	/** Checks if any colour in a tile is different from a copy of the raster
+	 * @param pixels The current raster
+	 * @param stride The distance between the start of two rows in pixels
+	 * @param before The copy, with a stride of the width
+	 * @param left The x coordinate of the tile
+	 * @param top The y coordinate of the tile
+	 * @return true if at least one colour changed
+	 */
+	private boolean tileChanged(int[] pixels, int stride, int[] before, int left, int top)
+	{
+		int tileWidth = Math.min(TILE_SIZE, beforeWidth - left);
+		int bottom = Math.min(top + TILE_SIZE, beforeHeight);
+		for (int y = top; y < bottom; y ++)
+			if (!Arrays.equals(pixels, y * stride + left, y * stride + left + tileWidth,
+					before, y * beforeWidth + left, y * beforeWidth + left + tileWidth))
+				return true;
+		return false;
+	}
+
+	/** Checks if any colour in a tile is different from its saved colours
+	 * @param pixels The current raster
+	 * @param stride The distance between the start of two rows in pixels
+	 * @param offset The index of the tile's first saved colour
+	 * @param left The x coordinate of the tile
+	 * @param top The y coordinate of the tile
+	 * @return true if at least one colour changed
+	 */
+	private boolean savedTileChanged(int[] pixels, int stride, int offset, int left, int top)
+	{
+		int tileWidth = Math.min(TILE_SIZE, beforeWidth - left);
+		int bottom = Math.min(top + TILE_SIZE, beforeHeight);
+		for (int y = top; y < bottom; y ++, offset += tileWidth)
+			if (!Arrays.equals(pixels, y * stride + left, y * stride + left + tileWidth,
+					colours, offset, offset + tileWidth))
+				return true;
+		return false;
+	}
+}